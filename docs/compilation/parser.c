@@ -1,9 +1,12 @@
 // Generic parser support in C. Public domain.
 #include "parser.h"
+#include <stdarg.h>
 #include <stdio.h>
 #include <stdlib.h>
 #include <stdint.h>
 #include <string.h>
+#include <limits.h>
+#include <time.h>
 
 // The maximum number of bytes allowed to be allocated during a single action.
 enum { MAX = 120 };
@@ -15,7 +18,8 @@ typedef union value value;
 
 // Structure with text and token input, start of recently matched input items,
 // current input position, stack of outputs, stack of saved input positions,
-// depth of lookahead, error marking info, an object store and a context.
+// depth of lookahead, error marking info, an object store, a context, and
+// resource limits.
 struct parser {
     int maxText; char *text;
     int maxTokens; token *tokens;
@@ -25,6 +29,8 @@ struct parser {
     int look, marked; uint64_t markers;
     int nextObj, maxStore; char *store;
     tagFunction *tag; void *context;
+    long steps, check, maxSteps, back, maxBack; clock_t deadline;
+    char *limit; jmp_buf *jump;
 };
 
 parser *newTokenParser(int n, char text[n], int nt, token *tokens) {
@@ -37,7 +43,9 @@ parser *newTokenParser(int n, char text[n], int nt, token *tokens) {
         .save = 0, .maxSaves = 8, .saves = malloc(8 * sizeof(int)),
         .look = 0, .marked = 0, .markers = 0L,
         .nextObj = 0, .maxStore = 0, .store = NULL,
-        .tag = NULL, .context = NULL
+        .tag = NULL, .context = NULL,
+        .steps = 0, .check = LONG_MAX, .maxSteps = 0, .back = 0, .maxBack = 0,
+        .deadline = 0, .limit = NULL, .jump = NULL
     };
     return p;
 }
@@ -55,6 +63,35 @@ void freeParser(parser *p) {
     free(p);
 }
 
+void limits(parser *p, jmp_buf *jump, long steps, long back, long ms) {
+    p->jump = jump;
+    p->maxSteps = steps;
+    p->maxBack = back;
+    p->deadline = ms > 0 ? clock() + ms * (CLOCKS_PER_SEC / 1000) : 0;
+    p->check = 1;
+}
+
+// Check the limits, at intervals of at most 1024 steps so the clock isn't read
+// too often, and abandon the parse if one has been exceeded. Make non-static to
+// allow inlining of callers.
+void checkLimits(parser *p) {
+    if (p->maxSteps > 0 && p->steps > p->maxSteps) p->limit = "steps";
+    else if (p->maxBack > 0 && p->back > p->maxBack) p->limit = "backtracking";
+    else if (p->deadline > 0 && clock() > p->deadline) p->limit = "time";
+    if (p->limit != NULL) longjmp(*p->jump, 1);
+    p->check = p->steps + 1024;
+    if (p->maxSteps > 0 && p->check > p->maxSteps + 1) {
+        p->check = p->maxSteps + 1;
+    }
+}
+
+// Backtrack to a saved position, counting the positions backtracked over.
+static inline void backtrack(parser *p, int saved) {
+    p->back = p->back + p->at - saved;
+    p->at = saved;
+    if (p->maxBack > 0 && p->back > p->maxBack) p->check = p->steps + 1;
+}
+
 // Make non-static to allow inlining of caller.
 void crashParser(char *s) {
     fprintf(stderr, "%s\n", s);
@@ -178,6 +215,7 @@ extern inline bool pushR(parser *p, int n, void *x) {
 }
 
 extern inline bool go(parser *p) {
+    if (++p->steps >= p->check) checkLimits(p);
     if (p->save >= p->maxSaves) {
         p->maxSaves = p->maxSaves * 2;
         p->saves = realloc(p->saves, p->maxSaves * sizeof(int));
@@ -200,18 +238,18 @@ extern inline bool opt(parser *p, bool b) {
 }
 
 extern inline bool has(parser *p, bool b) {
-    p->at = p->saves[--p->save];
+    backtrack(p, p->saves[--p->save]);
     return b;
 }
 
 extern inline bool not(parser *p, bool b) {
-    p->at = p->saves[--p->save];
+    backtrack(p, p->saves[--p->save]);
     return ! b;
 }
 
 extern inline bool see(parser *p, bool b) {
     if (b) --p->save;
-    else p->at = p->saves[--p->save];
+    else backtrack(p, p->saves[--p->save]);
     return b;
 }
 
@@ -353,6 +391,57 @@ extern inline bool set(parser *p, char *s) {
     return ok;
 }
 
+// Compare in place, up to the first difference, rather than copying the rest
+// of the input.
+extern inline bool split(parser *p, char *s) {
+    int i = 0;
+    while (s[i] != '\0' && p->at + i < p->maxText &&
+        p->text[p->at + i] == s[i]) i++;
+    if (s[i] == '\0') return p->at + i == p->maxText;
+    if (p->at + i == p->maxText) return true;
+    return (unsigned char) p->text[p->at + i] < (unsigned char) s[i];
+}
+
+// Scan the input once, as for the KEYS op in the interpreter. The keys in the
+// range lo..hi match the input so far. They are in descending order, so a key
+// matched completely is at the end of the range.
+bool keys(parser *p, int n, ...) {
+    char *ks[n];
+    va_list args;
+    va_start(args, n);
+    for (int i = 0; i < n; i++) ks[i] = va_arg(args, char *);
+    va_end(args);
+    int lo = 0, hi = n, k = 0, best = -1;
+    while (lo < hi) {
+        if (ks[hi - 1][k] == '\0') { best = k; hi--; }
+        if (lo == hi || p->at + k >= p->maxText) break;
+        unsigned char b = p->text[p->at + k];
+        while (lo < hi && (unsigned char) ks[lo][k] > b) lo++;
+        int end = lo;
+        while (end < hi && (unsigned char) ks[end][k] == b) end++;
+        hi = end;
+        k++;
+    }
+    if (best < 0) return false;
+    p->at += best;
+    return true;
+}
+
+// Search for the first byte of s with memchr, then check the rest.
+bool until(parser *p, char *s) {
+    int n = strlen(s);
+    char *end = p->text + p->maxText;
+    char *t = p->text + p->at;
+    while (t + n <= end) {
+        t = memchr(t, s[0], end - t - n + 1);
+        if (t == NULL || memcmp(t, s, n) == 0) break;
+        t++;
+    }
+    if (t == NULL || t + n > end) p->at = p->maxText;
+    else p->at = t - p->text;
+    return true;
+}
+
 extern inline bool drop(parser *p, int n) {
     p->start = p->at;
     p->out = p->out - n;
@@ -406,8 +495,9 @@ void report(parser *p, int at, char *s0, char *s, char *names[]) {
     int start = startLine(at, p->text);
     int end = endLine(at, p->text, p->maxText);
     int column = at - start;
-    if (p->markers == 0L) {
-        fprintf(stderr, "%s", s0);
+    if (p->limit != NULL || p->markers == 0L) {
+        if (p->limit == NULL) fprintf(stderr, "%s", s0);
+        else fprintf(stderr, "Resource limit (%s):\n", p->limit);
         reportLine(start, end, p->text);
         reportColumn(column);
         return;
@@ -1,6 +1,7 @@
 // Parser support in C. Public domain.
 #include <stdbool.h>
 #include <stdint.h>
+#include <setjmp.h>
 
 // Provide a parser state and primitive parsing functions. Many of the functions
 // are small and are defined as 'extern inline', so that cross-module
@@ -40,6 +41,17 @@ parser *newTokenParser(int n, char text[n], int m, token tokens[m]);
 // Free up a parser.
 void freeParser(parser *p);
 
+// Set limits on the number of steps, i.e. calls of go, the number of input
+// positions backtracked over by lookaheads, and the processor time in
+// milliseconds from now, with 0 meaning no limit. A parse which exceeds a limit
+// is abandoned with a longjmp to the given buffer, which should have been set
+// with setjmp, and report then describes the limit. For example:
+//     jmp_buf jump;
+//     limits(p, &jump, 0, 0, 1000);
+//     bool ok = false;
+//     if (setjmp(jump) == 0) ok = sum(p);
+void limits(parser *p, jmp_buf *jump, long steps, long back, long ms);
+
 // The type of a function to get the tag of a token, for context sensitive
 // parsing. It is only called if the original tag of a token is negative,
 // indicating an unresolved tag, and it should return a non-negative tag value.
@@ -110,7 +122,8 @@ int lineNumber(parser *p, int at);
 // %s. The separator text in between them is repeated as necessary. The format
 // strings should contain no other specifiers. For example, a filename and/or
 // line number should be printed first, before calling this. The last argument
-// is an array of description strings indexed by marker.
+// is an array of description strings indexed by marker. If the parse was
+// abandoned because of a limit, the limit is reported instead.
 void report(parser *p, int at, char *s0, char *s, char *names[]);
 
 // Save the current input position by pushing it onto a stack. Return true.
@@ -155,6 +168,19 @@ bool string(parser *p, char *s);
 // Accept a character if it is in s.
 bool set(parser *p, char *s);
 
+// Check, without consuming anything, that the rest of the input is less than
+// or equal to s, comparing bytes, which gives the same order as code points.
+bool split(parser *p, char *s);
+
+// Accept the longest of n strings which matches. The strings are in descending
+// order of bytes, so that each comes before its prefixes, and the input is
+// scanned once, narrowing down the strings which match so far.
+bool keys(parser *p, int n, ...);
+
+// Skip characters up to the next occurrence of s, or to the end of the input,
+// in place of (s! .)*, which tests for s at every character.
+bool until(parser *p, char *s);
+
 // Drop n items from the output stack, and discard recently matched items.
 bool drop(parser *p, int n);
 
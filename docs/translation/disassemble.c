@@ -7,17 +7,17 @@ typedef unsigned char byte;
 // The opcodes.
 enum op {
     ACT, AND, ARITY, BACK, BOTH, CAT, DO, DROP,
-    EITHER, EOT, GO, HAS, HIGH, LOOK, LOW, MANY,
-    MARK, MAYBE, NOT, ONE, OR, POINT, SEE, SET,
-    SPLIT, START, STOP, STRING, TAG
+    EITHER, EOT, GO, HAS, HIGH, KEYS, LOOK, LOW,
+    MANY, MARK, MAYBE, NOT, ONE, OR, POINT, SEE,
+    SET, SPAN, SPLIT, START, STOP, STRING, TAG, UNTIL
 };
 
 // Whether opcodes have operands.
 bool hasArg[] = {
     true, false, true, true, true, true, false, true,
-    true, false, true, false, true, false, true, false,
-    true, false, false, false, false, false, false, true,
-    true, true, false, true, true
+    true, false, true, false, true, true, false, true,
+    false, true, false, false, false, false, false, false,
+    true, true, true, true, false, true, true, true
 };
 
 // Whether operands are relative.
@@ -25,15 +25,15 @@ bool relative[] = {
     false, false, false, true, true, false, false, false,
     true, false, true, false, false, false, false, false,
     false, false, false, false, false, false, false, false,
-    false, true, false, false, false
+    false, false, false, true, false, false, false, false
 };
 
 // Names of opcodes.
 static char *opnames[] = {
     "ACT", "AND", "ARITY", "BACK", "BOTH", "CAT", "DO", "DROP",
-    "EITHER", "EOT", "GO", "HAS", "HIGH", "LOOK", "LOW", "MANY",
-    "MARK", "MAYBE", "NOT", "ONE", "OR", "POINT", "SEE", "SET",
-    "SPLIT", "START", "STOP", "STRING", "TAG"
+    "EITHER", "EOT", "GO", "HAS", "HIGH", "KEYS", "LOOK", "LOW",
+    "MANY", "MARK", "MAYBE", "NOT", "ONE", "OR", "POINT", "SEE",
+    "SET", "SPAN", "SPLIT", "START", "STOP", "STRING", "TAG", "UNTIL"
 };
 
 // Read in a binary file.
@@ -65,7 +65,7 @@ int main() {
       }
       if (op == BACK) arg = pc - arg;
       else if (relative[op]) arg = pc + arg;
-      if (hasArg[op]) printf("%s %d\n", opnames[op], arg);
+      if (hasArg[op] || arg != 0) printf("%s %d\n", opnames[op], arg);
       else printf("%s\n", opnames[op]);
   }
 }
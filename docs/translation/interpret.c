@@ -5,6 +5,8 @@
 #include <stdbool.h>
 #include <stdint.h>
 #include <string.h>
+#include <limits.h>
+#include <time.h>
 
 // Change this section for different applications.
 
@@ -49,6 +51,7 @@ typedef unsigned char byte;
 byte *readFile(char *filename);
 parser *newParser(byte *bytecode);
 void freeParser(parser *p);
+void limits(parser *p, long steps, long back, long ms);
 bool execute(parser *p, int n, input[n]);
 output answer(parser *p);
 void report(parser *p, char *ds, char *f, char *names[]);
@@ -61,6 +64,8 @@ int main() {
   char *r = fgets(in, 100, stdin);
   if (r == NULL) printf("Can't read stdin\n");
   parser *p = newParser(bytecode);
+  // To guard against slow inputs, set limits here, e.g. limits(p, 0, 0, 1000)
+  // abandons any parse which takes more than a second.
   bool ok = execute(p, strlen(in), in);
   if (ok) printf("%d\n", answer(p));
   else report(p, "Syntax error:\n", "Error: expecting %s, %s\n", names);
@@ -73,9 +78,9 @@ int main() {
 // The opcodes, in alphabetical order.
 enum op {
     ACT, AND, ARITY, BACK, BOTH, CAT, DO, DROP,
-    EITHER, EOT, GO, HAS, HIGH, LOOK, LOW, MANY,
-    MARK, MAYBE, NOT, ONE, OR, POINT, SEE, SET,
-    SPLIT, START, STOP, STRING, TAG
+    EITHER, EOT, GO, HAS, HIGH, KEYS, LOOK, LOW,
+    MANY, MARK, MAYBE, NOT, ONE, OR, POINT, SEE,
+    SET, SPAN, SPLIT, START, STOP, STRING, TAG, UNTIL
 };
 
 // Types of operand.
@@ -84,17 +89,17 @@ enum types { None, Number, String, Offset };
 // Operand types for each opcode, for tracing.
 int operandTypes[] = {
     Number, None, Number, Offset, Offset, Number, None, Number,
-    Offset, None, Offset, None, String, None, String, None,
-    Number, None, None, None, None, None, None, String,
-    String, Offset, None, String, Number
+    Offset, None, Offset, None, String, String, None, String,
+    None, Number, None, None, None, None, None, None,
+    String, String, String, Offset, None, String, Number, String
 };
 
 // Names of opcodes, for tracing.
 static char *opnames[] = {
     "ACT", "AND", "ARITY", "BACK", "BOTH", "CAT", "DO", "DROP",
-    "EITHER", "EOT", "GO", "HAS", "HIGH", "LOOK", "LOW", "MANY",
-    "MARK", "MAYBE", "NOT", "ONE", "OR", "POINT", "SEE", "SET",
-    "SPLIT", "START", "STOP", "STRING", "TAG"
+    "EITHER", "EOT", "GO", "HAS", "HIGH", "KEYS", "LOOK", "LOW",
+    "MANY", "MARK", "MAYBE", "NOT", "ONE", "OR", "POINT", "SEE",
+    "SET", "SPAN", "SPLIT", "START", "STOP", "STRING", "TAG", "UNTIL"
 };
 
 // Unicode category codes, in alphabetical order, as in the lookup tables.
@@ -104,13 +109,15 @@ enum category {
 };
 
 // Structure to hold input, stack of outputs, saved bytecode addresses and input
-// positions, depth of lookahead, error markers, and bytecode, during parsing.
+// positions, depth of lookahead, error markers, bytecode, and resource limits,
+// during parsing.
 struct parser {
   int in, start, end; input *ins;
   int out, nouts; output *outs;
   int save, nsaves; int *saves;
   int look, marked; long markers;
   byte *code; int pc, arity, tagpos, tag; bool ok;
+  long steps, check, maxSteps, back, maxBack; clock_t deadline; char *limit;
 };
 
 // Read in a binary file.
@@ -135,11 +142,23 @@ parser *newParser(byte *bytecode) {
     .out = 0, .nouts = 8, .outs = malloc(8 * sizeof(output)),
     .save = 0, .nsaves = 8, .saves = malloc(8 * sizeof(int)),
     .look = 0, .marked = 0, .markers = 0L,
-    .code = bytecode, .pc = 0, .arity = 0, .tagpos = -1, .tag = 0, .ok = true
+    .code = bytecode, .pc = 0, .arity = 0, .tagpos = -1, .tag = 0, .ok = true,
+    .steps = 0, .check = LONG_MAX, .maxSteps = 0, .back = 0, .maxBack = 0,
+    .deadline = 0, .limit = NULL
   };
   return p;
 }
 
+// Set limits on the number of ops executed, the number of bytes backtracked
+// over by lookaheads, and the processor time in milliseconds from now, with 0
+// meaning no limit. A parse which exceeds a limit is abandoned.
+void limits(parser *p, long steps, long back, long ms) {
+  p->maxSteps = steps;
+  p->maxBack = back;
+  p->deadline = ms > 0 ? clock() + ms * (CLOCKS_PER_SEC / 1000) : 0;
+  p->check = 1;
+}
+
 // Free parser and its data.
 void freeParser(parser *p) {
   free(p->outs);
@@ -198,7 +217,10 @@ void report(parser *p, char *s0, char *s, char *names[]) {
     lineInfo liData;
     lineInfo *li = &liData;
     findLine(p->ins, p->in, li);
-    if (p->markers == 0L) fprintf(stderr, "%s", s0);
+    if (p->limit != NULL) {
+      fprintf(stderr, "Resource limit (%s) at op %d:\n", p->limit, p->pc);
+    }
+    else if (p->markers == 0L) fprintf(stderr, "%s", s0);
     else {
       char text[100];
       strcpy(text, s);
@@ -252,15 +274,21 @@ static inline void doGO(parser *p, int arg) {
 }
 
 // {x / y}  =  EITHER(nx) {x} OR {y}
-// Save in, call x, returning to OR.
+// Save in, unless the OR has operand 1 because x can't fail after progress,
+// then call x, returning to OR.
 static inline void doEITHER(parser *p, int arg) {
-    p->saves[p->nsaves++] = p->in;
-    p->saves[p->nsaves++] = p->pc + arg;
+    int next = p->pc + arg;
+    if ((p->code[next] & 0x60) == 0) p->saves[p->nsaves++] = p->in;
+    p->saves[p->nsaves++] = next;
 }
 
 // {x / y}  =  EITHER(nx) {x} OR {y}
 // After x, check success and progress, return or continue with y.
-static inline void doOR(parser *p) {
+static inline void doOR(parser *p, int arg) {
+    if (arg != 0) {
+        if (p->ok) p->pc = p->saves[--p->nsaves];
+        return;
+    }
     int saveIn = p->saves[--p->nsaves];
     if (p->ok || p->in > saveIn) p->pc = p->saves[--p->nsaves];
 }
@@ -278,17 +306,18 @@ static inline void doAND(parser *p) {
 }
 
 // {x?}  =  MAYBE ONE {x}   and similarly for x*, x+
-// Save in and call x, returning to ONE or MANY.
+// Save in, unless the ONE or MANY has operand 1 because x can't fail after
+// progress, and call x, returning to ONE or MANY.
 static inline void doMAYBE(parser *p) {
-    p->saves[p->nsaves++] = p->in;
+    if ((p->code[p->pc] & 0x60) == 0) p->saves[p->nsaves++] = p->in;
     p->saves[p->nsaves++] = p->pc;
     p->pc++;
 }
 
 // {x?}  =  MAYBE ONE {x}
 // After x, check success or no progress and return.
-static inline void doONE(parser *p) {
-    int saveIn = p->saves[--p->nsaves];
+static inline void doONE(parser *p, int arg) {
+    int saveIn = (arg != 0) ? p->in : p->saves[--p->nsaves];
     if (! p->ok && p->in == saveIn) {
         p->ok = true;
     }
@@ -297,10 +326,10 @@ static inline void doONE(parser *p) {
 
 // {x*}  =  MAYBE MANY {x}
 // After x, check success and re-try x or return.
-static inline void doMANY(parser *p) {
-    int saveIn = p->saves[--p->nsaves];
+static inline void doMANY(parser *p, int arg) {
+    int saveIn = (arg != 0) ? p->in : p->saves[--p->nsaves];
     if (p->ok) {
-        p->saves[p->nsaves++] = p->in;
+        if (arg == 0) p->saves[p->nsaves++] = p->in;
         p->saves[p->nsaves++] = p->pc - 1;
     }
     else {
@@ -327,19 +356,39 @@ static inline void doLOOK(parser *p) {
     p->pc++;
 }
 
+// Check the limits, at intervals of at most 1024 ops so the clock isn't read
+// too often. Record the name of a limit which has been exceeded.
+static bool limited(parser *p) {
+    if (p->maxSteps > 0 && p->steps > p->maxSteps) p->limit = "steps";
+    else if (p->maxBack > 0 && p->back > p->maxBack) p->limit = "backtracking";
+    else if (p->deadline > 0 && clock() > p->deadline) p->limit = "time";
+    p->check = p->steps + 1024;
+    if (p->maxSteps > 0 && p->check > p->maxSteps + 1) {
+        p->check = p->maxSteps + 1;
+    }
+    return p->limit != NULL;
+}
+
+// Backtrack to a saved input position, counting the bytes backtracked over.
+static inline void backtrack(parser *p, int saveIn) {
+    p->back = p->back + p->in - saveIn;
+    p->in = saveIn;
+    if (p->maxBack > 0 && p->back > p->maxBack) p->check = p->steps + 1;
+}
+
 // {[x]}  =  LOOK SEE x
 // After x, backtrack, and if successful, tail-call x for actions/markers.
 static inline void doSEE(parser *p) {
     int saveIn = p->saves[--p->nsaves];
     p->look--;
-    p->in = saveIn;
+    backtrack(p, saveIn);
     if (! p->ok) p->pc = p->saves[--p->nsaves];
 }
 
 // {x&}  =  LOOK HAS x
 // After x, backtrack and return.
 static inline void doHAS(parser *p) {
-    p->in = p->saves[--p->nsaves];
+    backtrack(p, p->saves[--p->nsaves]);
     p->look--;
     p->pc = p->saves[--p->nsaves];
 }
@@ -347,7 +396,7 @@ static inline void doHAS(parser *p) {
 // {x!}  =  LOOK NOT x
 // After x, backtrack, invert the result, and return.
 static inline void doNOT(parser *p) {
-    p->in = p->saves[--p->nsaves];
+    backtrack(p, p->saves[--p->nsaves]);
     p->look--;
     p->ok = ! p->ok;
     p->pc = p->saves[--p->nsaves];
@@ -444,15 +493,36 @@ static inline void doHIGH(parser *p, int arg) {
 }
 
 // {<abc>}  =  SPLIT(3) 'a' 'b' 'c'
-// Check if input <= "abc", return.
+// Check if the rest of the input <= "abc", comparing bytes up to the first
+// difference, and return. If the input starts with "abc", it must end there.
 static inline void doSPLIT(parser *p, int arg) {
-    p->ok = true;
-    for (int i = 0; i < arg && p->ok; i++) {
-        if (p->in + i == p->end) break;
-        byte bc = p->code[p->pc + i];
-        byte bi = p->ins[p->in + i];
-        if (bi > bc) p->ok = false;
+    int i = 0;
+    while (i < arg && p->in + i < p->end &&
+        (byte) p->ins[p->in + i] == p->code[p->pc + i]) i++;
+    if (i == arg) p->ok = p->in + i == p->end;
+    else if (p->in + i == p->end) p->ok = true;
+    else p->ok = (byte) p->ins[p->in + i] < p->code[p->pc + i];
+    p->pc = p->saves[--p->nsaves];
+}
+
+// {"ab" / "c"}  =  KEYS(5) 2 'a' 'b' 1 'c'
+// Match the longest key, from a table of keys sorted by bytes, each preceded by
+// its length. The keys in the range lo..hi match the input so far, and a key
+// matched completely is at the start of the range.
+static inline void doKEYS(parser *p, int arg) {
+    int lo = p->pc, hi = p->pc + arg, k = 0, best = -1;
+    while (lo < hi) {
+        if (p->code[lo] == k) { best = k; lo = lo + 1 + k; }
+        if (lo == hi || p->in + k >= p->end) break;
+        byte bi = p->ins[p->in + k];
+        while (lo < hi && p->code[lo + 1 + k] < bi) lo += 1 + p->code[lo];
+        int end = lo;
+        while (end < hi && p->code[end + 1 + k] == bi) end += 1 + p->code[end];
+        hi = end;
+        k++;
     }
+    p->ok = best >= 0;
+    if (p->ok) p->in = p->in + best;
     p->pc = p->saves[--p->nsaves];
 }
 
@@ -464,6 +534,42 @@ static inline int lengthUTF8(byte first) {
     return 4;
 }
 
+// {(' ' / '\t')*}  =  SPAN(17) 0 2 0 0 1 0 ... 0
+// Skip characters accepted by a loop body which matches one character. The
+// operand is a bitmap of the accepted ascii characters, followed by a byte with
+// bit 0 set if all other characters are accepted, and bit 1 set if at least
+// one character is needed. Return.
+static inline void doSPAN(parser *p, int arg) {
+    byte *bits = &p->code[p->pc];
+    int start = p->in;
+    while (p->in < p->end) {
+        byte b = p->ins[p->in];
+        if (b < 128 && (bits[b >> 3] & (1 << (b & 7))) == 0) break;
+        if (b >= 128 && (bits[16] & 1) == 0) break;
+        p->in = p->in + lengthUTF8(b);
+    }
+    if (p->in > p->end) p->in = p->end;
+    p->ok = p->in > start || (bits[16] & 2) == 0;
+    p->pc = p->saves[--p->nsaves];
+}
+
+// {("*/"! .)*}  =  UNTIL(2) '*' '/'
+// Skip to the next occurrence of the operand bytes, or to the end of the input,
+// using memchr to find candidates for the first byte. Return.
+static inline void doUNTIL(parser *p, int arg) {
+    byte *s = &p->code[p->pc];
+    input *t = &p->ins[p->in], *end = &p->ins[p->end];
+    while (t + arg <= end) {
+        t = memchr(t, s[0], end - t - arg + 1);
+        if (t == NULL || memcmp(t, s, arg) == 0) break;
+        t++;
+    }
+    if (t == NULL || t + arg > end) p->in = p->end;
+    else p->in = t - p->ins;
+    p->ok = true;
+    p->pc = p->saves[--p->nsaves];
+}
+
 // Read a UTF-8 character and its length.
 static inline int getUTF8(char const *s, int *plength) {
     int ch = s[0], len = 1;
@@ -546,7 +652,10 @@ static inline void doEOT(parser *p) {
 static void trace(parser *p, int start, int end, int op, int arg) {
     printf("%d: ", start);
     switch(operandTypes[op]) {
-        case None: printf("%s\n", opnames[op]); break;
+        case None:
+            if (arg == 0) printf("%s\n", opnames[op]);
+            else printf("%s %d\n", opnames[op], arg);
+            break;
         case Number: printf("%s %d\n", opnames[op], arg); break;
         case Offset:
             if (op == BACK) printf("%s %d\n", opnames[op], end - arg);
@@ -566,6 +675,7 @@ bool execute(parser *p, int n, input ins[n]) {
     int b, op, arg;
     while (true) {
         int start = p->pc;
+        if (++p->steps >= p->check && limited(p)) return false;
         b = p->code[p->pc++];
         op = b & 0x1F;
         arg = (b >> 5) & 0x3;
@@ -582,12 +692,12 @@ bool execute(parser *p, int n, input ins[n]) {
             case GO: doGO(p, arg); break;
             case BACK: doGO(p, -arg); break;
             case EITHER: doEITHER(p, arg); break;
-            case OR: doOR(p); break;
+            case OR: doOR(p, arg); break;
             case BOTH: doBOTH(p, arg); break;
             case AND: doAND(p); break;
             case MAYBE: doMAYBE(p); break;
-            case ONE: doONE(p); break;
-            case MANY: doMANY(p); break;
+            case ONE: doONE(p, arg); break;
+            case MANY: doMANY(p, arg); break;
             case DO: doDO(p); break;
             case LOOK: doLOOK(p); break;
             case SEE: doSEE(p); break;
@@ -599,8 +709,11 @@ bool execute(parser *p, int n, input ins[n]) {
             case LOW: doLOW(p, arg); break;
             case HIGH: doHIGH(p, arg); break;
             case SPLIT: doSPLIT(p, arg); break;
+            case KEYS: doKEYS(p, arg); break;
+            case SPAN: doSPAN(p, arg); break;
             case SET: doSET(p, arg); break;
             case TAG: doTAG(p, arg); break;
+            case UNTIL: doUNTIL(p, arg); break;
             case POINT: doPOINT(p, arg); break;
             case CAT: doCAT(p, arg); break;
             case EOT: doEOT(p); break;
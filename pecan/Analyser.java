@@ -0,0 +1,241 @@
+// Pecan 1.0 analyser. Free and open source. See licence.txt.
+
+package pecan;
+
+import java.util.*;
+import static pecan.Op.*;
+import static pecan.Node.Flag.*;
+
+/* Analyse a grammar for constructs which can make parsing take more than linear
+time, and report them as warnings, with locations and estimated complexity
+classes. A choice never backtracks after progress, so the only places where
+input is scanned more than once are lookaheads [x], x& and x!. The analysis
+uses the flags calculated by the Checker, and reports:
+
+  * a lookahead around a recursive rule, i.e. one whose subject can call the
+    rule containing the lookahead, so that the lookahead is tried again at each
+    level of nesting; this is O(2^n) if the subject is parsed twice, as for x&
+    or for [x] with actions or markers, which compiled code parses as x& x,
+    and O(n^2) otherwise
+
+  * a lookahead whose subject can consume an unbounded amount of input,
+    because it contains a loop or calls a recursive rule, inside a loop or in
+    a rule which is called repeatedly, O(n^2)
+
+  * a loop within the body of another loop, inside the subject of such a
+    lookahead, whose body can fail after progress, so that the work done by the
+    inner loop is thrown away by the backtracking, O(n^2)
+
+The analysis is conservative, so a warning means that a problem can occur, not
+that it does occur for the inputs actually parsed. */
+
+class Analyser implements Testable {
+    private boolean switchTest;
+    private Map<Node,Set<Node>> calls;
+    private Set<Node> recursive, unbounded, repeated, reported;
+    private StringBuilder warnings;
+
+    // Do unit testing on the Stacker class, then check the switch is complete,
+    // then run the Analyser unit tests.
+    public static void main(String[] args) {
+        if (args.length == 0) Stacker.main(args);
+        Analyser analyser = new Analyser();
+        analyser.switchTest = true;
+        for (Op op : Op.values()) {
+            Node node = new Node(op, null, null);
+            analyser.analyse(node, null, 0);
+        }
+        analyser.switchTest = false;
+        if (args.length == 0) args = new String[] { "tests/Analyser2.txt" };
+        Test.run(analyser, args);
+    }
+
+    public Testable copy() { return new Analyser(); }
+
+    // Analyse the grammar in the given source, and return the warnings, or the
+    // error message if the grammar is invalid.
+    public String run(Source source) {
+        Stacker stacker = new Stacker();
+        Node root = stacker.run(source);
+        if (root.op() == Error) return root.note() + "\n";
+        return analyse(root);
+    }
+
+    // Analyse a checked grammar, returning the warnings, one per line.
+    String analyse(Node root) {
+        calls = new HashMap<>();
+        recursive = new HashSet<>();
+        unbounded = new HashSet<>();
+        repeated = new HashSet<>();
+        reported = new HashSet<>();
+        warnings = new StringBuilder();
+        for (Node node = root; node.op() == List; node = node.right()) {
+            Node rule = node.left();
+            Set<Node> called = new HashSet<>();
+            findCalls(rule.right(), called);
+            calls.put(rule, called);
+        }
+        for (Node rule : calls.keySet()) {
+            if (reach(rule).contains(rule)) recursive.add(rule);
+        }
+        findUnbounded();
+        findRepeated();
+        for (Node node = root; node.op() == List; node = node.right()) {
+            Node rule = node.left();
+            analyse(rule.right(), rule, 0);
+        }
+        return warnings.toString();
+    }
+
+    // Gather the rules called directly from a node.
+    private void findCalls(Node node, Set<Node> called) {
+        if (node.op() == Id) called.add(node.ref());
+        if (node.left() != null) findCalls(node.left(), called);
+        if (node.right() != null) findCalls(node.right(), called);
+    }
+
+    // Find the rules reachable by one or more calls from a rule.
+    private Set<Node> reach(Node rule) {
+        Set<Node> seen = new HashSet<>();
+        List<Node> todo = new ArrayList<>(calls.get(rule));
+        while (! todo.isEmpty()) {
+            Node r = todo.remove(todo.size() - 1);
+            if (seen.add(r)) todo.addAll(calls.get(r));
+        }
+        return seen;
+    }
+
+    // Find the rules reachable from a node, including those called directly.
+    private Set<Node> reach(Node node, Set<Node> seen) {
+        Set<Node> called = new HashSet<>();
+        findCalls(node, called);
+        for (Node rule : called) {
+            if (seen.add(rule)) seen.addAll(reach(rule));
+        }
+        return seen;
+    }
+
+    // Find the rules which can consume an unbounded amount of input, because
+    // they contain a loop, or call a recursive or unbounded rule.
+    private void findUnbounded() {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Node rule : calls.keySet()) {
+                if (unbounded.contains(rule)) continue;
+                if (unbounded(rule.right())) changed = unbounded.add(rule);
+            }
+        }
+    }
+
+    // Check whether a node can consume an unbounded amount of input.
+    private boolean unbounded(Node node) {
+        switch (node.op()) {
+            case Any: case Some: case Span: case Until: return true;
+            case Id:
+                Node rule = node.ref();
+                return recursive.contains(rule) || unbounded.contains(rule);
+            default:
+                if (node.left() != null && unbounded(node.left())) return true;
+                return node.right() != null && unbounded(node.right());
+        }
+    }
+
+    // Find the rules which can be called repeatedly: recursive rules, rules
+    // called from within loops, and rules called from repeated rules.
+    private void findRepeated() {
+        repeated.addAll(recursive);
+        for (Node rule : calls.keySet()) findLooped(rule.right(), false);
+        List<Node> todo = new ArrayList<>(repeated);
+        while (! todo.isEmpty()) {
+            Node rule = todo.remove(todo.size() - 1);
+            for (Node r : calls.get(rule)) if (repeated.add(r)) todo.add(r);
+        }
+    }
+
+    // Add the rules called from within loops to the repeated rules.
+    private void findLooped(Node node, boolean looped) {
+        if (node.op() == Id && looped) repeated.add(node.ref());
+        if (node.op() == Any || node.op() == Some) looped = true;
+        if (node.left() != null) findLooped(node.left(), looped);
+        if (node.right() != null) findLooped(node.right(), looped);
+    }
+
+    // Analyse a node within a rule, given the number of enclosing loops.
+    private void analyse(Node node, Node rule, int loops) {
+        switch (node.op()) {
+            case Error: case Temp: case List: case Empty: case Rule: break;
+            case Id: case Char: case Text: case Set: case Split: case Point:
+            case Success: case Fail: case Eot: case Range: case Cat: case Tag:
+            case Mark: case Drop: case Act: case Until: break;
+            case Or: case And: case Opt: case Keys:
+                analyseSubnodes(node, rule, loops);
+                break;
+            case Any: case Some: case Span:
+                analyseLoop(node, rule, loops);
+                break;
+            case See: case Has: case Not: analyseLook(node, rule, loops); break;
+            default: assert false : "Unexpected node type " + node.op(); break;
+        }
+    }
+
+    // Analyse the subnodes of a node.
+    private void analyseSubnodes(Node node, Node rule, int loops) {
+        if (switchTest) return;
+        analyse(node.left(), rule, loops);
+        if (node.right() != null) analyse(node.right(), rule, loops);
+    }
+
+    // Analyse a loop, or a span made from one.
+    private void analyseLoop(Node node, Node rule, int loops) {
+        if (switchTest) return;
+        analyse(node.left(), rule, loops + 1);
+    }
+
+    // Analyse a lookahead, within a rule, given the number of enclosing loops.
+    // A redundant [x] is parsed as x, so it isn't a lookahead.
+    private void analyseLook(Node node, Node rule, int loops) {
+        if (switchTest) return;
+        Node x = node.left();
+        analyse(x, rule, loops);
+        if (node.op() == See && node.redundant()) return;
+        boolean twice = node.op() == Has ||
+            node.op() == See && (node.has(AA) || node.has(EE));
+        Set<Node> reached = reach(x, new HashSet<>());
+        if (reached.contains(rule)) {
+            String name = rule.left().text();
+            String order = twice ? "O(2^n)" : "O(n^2)";
+            warn(node, "lookahead around recursive rule " + name + ", " +
+                order);
+        }
+        else if (unbounded(x) && (loops > 0 || repeated.contains(rule))) {
+            warn(node, "lookahead over unbounded input, repeated, O(n^2)");
+        }
+        else return;
+        Set<Node> seen = new HashSet<>();
+        findNested(x, 0, seen);
+        for (Node r : reached) findNested(r.right(), 0, seen);
+    }
+
+    // Within the subject of a repeated lookahead, find loops within loops
+    // whose bodies can fail after progress.
+    private void findNested(Node node, int loops, Set<Node> seen) {
+        if (! seen.add(node)) return;
+        if (node.op() == Any || node.op() == Some) {
+            if (loops > 0 && node.left().has(FP)) {
+                warn(node, "nested loop in lookahead can fail after progress," +
+                    " O(n^2)");
+            }
+            loops++;
+        }
+        if (node.left() != null) findNested(node.left(), loops, seen);
+        if (node.right() != null) findNested(node.right(), loops, seen);
+    }
+
+    // Add a warning for a node, unless there already is one.
+    private void warn(Node node, String message) {
+        if (! reported.add(node)) return;
+        String s = node.source().error(message);
+        warnings.append("Warning" + s.substring("Error".length()) + "\n");
+    }
+}
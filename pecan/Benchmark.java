@@ -0,0 +1,248 @@
+// Pecan 1.0 benchmarks. Free and open source. See licence.txt.
+
+package pecan;
+
+import java.io.*;
+import java.lang.management.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/* Measure the performance of the engines on the shipped grammars, so that the
+effect of every performance change can be checked. Run with:
+
+    make bench
+    java pecan.Benchmark [-s size] [-w warmups] [-i iterations] [-r seed]
+        [grammar...]
+
+For each grammar, the preparation time, i.e. parsing through to stacking, is
+measured. Then each engine is measured. The Evaluator is measured by parsing a
+synthetic input, scaled up to the given size in bytes (default 64K) by
+repeating a unit of text or, with the -r option, generated randomly by a
+Sampler where possible. It is measured in its normal mode, and in recognising
+mode, where an accepted input is handled by the recogniser image. The
+throughput is reported in MB/s of UTF-8 input, together with the number of
+bytes allocated per input byte. The Compiler and Generator are measured by
+translating the grammar, as they don't parse input themselves, both with and
+without the -O optimisations.
+
+Each measurement is preceded by warmup runs, to give the JIT compiler a chance,
+and is the median of several timed runs. Allocation is measured per thread,
+using the com.sun.management extension, where available. A grammar which
+can't be prepared, or which rejects its synthetic input, is reported as
+FAILED, and the program then exits with status 1 after the other workloads
+have been measured. */
+
+class Benchmark {
+    private int size = 1 << 16, warmups = 5, iterations = 10;
+    private Long seed;
+    private com.sun.management.ThreadMXBean threads;
+    private boolean failed;
+
+    // The workloads. Each has a grammar file, and a prefix, unit, separator
+    // and suffix from which to make an input. A grammar fragment is made
+    // self-contained by using the first section of its test file.
+    private static final String[][] workloads = {
+        { "docs/development/sum.txt", "", "(12 + 34) * 5", " - ", "\n" },
+        { "docs/compilation/sum.txt", "", "(12 + 34) * 5", " - ", "\n" },
+        { "docs/tokens/scan.txt", "", "12 + (34 * 5) / 6 ", "", "\n" },
+        { "docs/tokens/sum.txt", "",
+            "open number plus number close times number", " minus ", " end" },
+        { "docs/pecan.txt", "", "x = ['a' y* @z] / \"bc\" z! <> #m %t\n",
+            "", "" },
+        { "docs/c/c-scan.txt", "",
+            "int main(void) { return x[3] + 0x1F; } /* note */\n", "", "" },
+        { "docs/c/c-expressions-test.txt", "",
+            "identifier [ constant ] * ( identifier - constant )", " + ", "" },
+        { "docs/c/c-declarations-test.txt", "int identifier",
+            " , identifier = constant", "", " ;" },
+        { "docs/c/c-statements-test.txt", "{ ",
+            "if ( identifier < constant ) identifier = - identifier ;", " ",
+            " }" },
+        { "docs/c/c-externals-test.txt", "void identifier ( identifier ) { ",
+            "identifier = identifier + constant ;", " ", " }" },
+        { "docs/c/c-parse-test.txt", "void identifier ( identifier ) { ",
+            "identifier = identifier + constant ;", " ", " }" },
+    };
+
+    // Run on a thread with a large stack, because the Evaluator recurses
+    // once per item for grammars with right recursive rules.
+    public static void main(String[] args) throws InterruptedException {
+        Benchmark program = new Benchmark();
+        Thread thread = new Thread(
+            null, () -> program.run(args), "benchmark", 1L << 30);
+        thread.start();
+        thread.join();
+        if (program.failed) System.exit(1);
+    }
+
+    // Run the workloads named on the command line, or all of them.
+    private void run(String[] args) {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (i + 1 < args.length && args[i].equals("-s")) {
+                size = Integer.parseInt(args[++i]);
+            }
+            else if (i + 1 < args.length && args[i].equals("-w")) {
+                warmups = Integer.parseInt(args[++i]);
+            }
+            else if (i + 1 < args.length && args[i].equals("-i")) {
+                iterations = Integer.parseInt(args[++i]);
+            }
+            else if (i + 1 < args.length && args[i].equals("-r")) {
+                seed = Long.parseLong(args[++i]);
+            }
+            else if (args[i].startsWith("-")) usage();
+            else names.add(args[i]);
+        }
+        if (iterations < 1) usage();
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            threads = (com.sun.management.ThreadMXBean) bean;
+            if (! threads.isThreadAllocatedMemorySupported()) threads = null;
+            else threads.setThreadAllocatedMemoryEnabled(true);
+        }
+        System.out.printf("%-30s %-11s %10s %10s %12s\n",
+            "grammar", "engine", "ms", "MB/s", "alloc/byte");
+        for (String[] w : workloads) {
+            if (names.isEmpty() || names.contains(w[0])) measure(w);
+        }
+    }
+
+    // Measure one workload.
+    private void measure(String[] w) {
+        String file = w[0];
+        Source source = new Source(new File(file));
+        int n = source.indexOf("\n==========");
+        Source grammar = n < 0 ? source : source.sub(0, n + 1);
+        Node root = new Stacker().run(grammar);
+        if (root.op() == Op.Error) {
+            fail(file, "prepare", root.note());
+            return;
+        }
+        double ms = time(() -> new Stacker().run(grammar)) / 1e6;
+        report(file, "prepare", ms, 0, -1);
+        String text = seed == null ? null : sample(grammar);
+        if (text == null) text = input(w);
+        measureEvaluator(file, "Evaluator", grammar, text, false);
+        measureEvaluator(file, "Recogniser", grammar, text, true);
+        for (boolean optimise : new boolean[] { false, true }) {
+            Compiler compiler = new Compiler();
+            compiler.formats(formats());
+            compiler.optimise(optimise);
+            ms = time(() -> compiler.run(grammar)) / 1e6;
+            report(file, optimise ? "Compiler-O" : "Compiler", ms, 0, -1);
+        }
+        for (boolean optimise : new boolean[] { false, true }) {
+            Generator generator = new Generator();
+            generator.testing(true);
+            generator.optimise(optimise);
+            ms = time(() -> generator.run(grammar)) / 1e6;
+            report(file, optimise ? "Generator-O" : "Generator", ms, 0, -1);
+        }
+    }
+
+    // Measure the Evaluator parsing the given input, in normal or recognising
+    // mode. Rates are per byte of the UTF-8 encoded input, not per character.
+    private void measureEvaluator(
+        String file, String engine, Source grammar, String text,
+        boolean recognising
+    ) {
+        Evaluator evaluator = new Evaluator();
+        evaluator.recognising(recognising);
+        evaluator.grammar(grammar);
+        Source input = new Source(text);
+        String out = evaluator.run(input);
+        if (out.startsWith("Error")) {
+            fail(file, engine, out);
+            return;
+        }
+        int bytes = text.getBytes(StandardCharsets.UTF_8).length;
+        long allocated = allocated();
+        double ns = time(() -> evaluator.run(input));
+        allocated = allocated() - allocated;
+        int runs = warmups + iterations;
+        double perByte = allocated < 0 ? -1 :
+            (double) allocated / runs / bytes;
+        double mbs = bytes / (ns / 1e9) / (1 << 20);
+        report(file, engine, ns / 1e6, mbs, perByte);
+    }
+
+    // Report a failed measurement, with the first line of its message.
+    private void fail(String file, String engine, String message) {
+        int n = message.indexOf('\n');
+        if (n >= 0) message = message.substring(0, n);
+        System.out.printf("%-30s %-11s FAILED: %s\n", file, engine, message);
+        failed = true;
+    }
+
+    // Make an input from a workload, of about the current size.
+    private String input(String[] w) {
+        StringBuilder sb = new StringBuilder(w[1]);
+        sb.append(w[2]);
+        while (sb.length() + w[3].length() + w[2].length() + w[4].length()
+            <= size) {
+            sb.append(w[3]).append(w[2]);
+        }
+        sb.append(w[4]);
+        return sb.toString();
+    }
+
+    // Generate a random input of about the current size, or return null if
+    // the sampler falls well short, e.g. for a right recursive grammar.
+    private String sample(Source grammar) {
+        Sampler sampler = new Sampler(seed);
+        sampler.size(size);
+        if (sampler.grammar(grammar) != null) return null;
+        String s = sampler.valid();
+        if (s == null || s.length() < size / 2) return null;
+        return s;
+    }
+
+    // Provide C-like formats for the Compiler.
+    private Formats formats() {
+        Formats formats = new Formats();
+        formats.readLine(1, "benchmark", "declare = 'bool %s();'");
+        formats.readLine(1, "benchmark", "comment = '// %s'");
+        formats.readLine(1, "benchmark",
+            "define = 'bool %s() { %n return %r; %n}'");
+        formats.fillDefaults(1, "benchmark");
+        return formats;
+    }
+
+    // Run a task for the warmup runs, then time the measured runs, and return
+    // the median time in nanoseconds.
+    private double time(Runnable task) {
+        for (int i = 0; i < warmups; i++) task.run();
+        long[] times = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long t = System.nanoTime();
+            task.run();
+            times[i] = System.nanoTime() - t;
+        }
+        Arrays.sort(times);
+        return times[iterations / 2];
+    }
+
+    // Find the number of bytes allocated so far by this thread, or -1.
+    private long allocated() {
+        if (threads == null) return -1;
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // Print a line of the results, leaving out unmeasured columns.
+    private void report(String file, String engine, double ms, double mbs,
+        double perByte) {
+        String rate = mbs > 0 ? String.format("%10.2f", mbs) : "";
+        String alloc = perByte >= 0 ? String.format("%12.1f", perByte) : "";
+        System.out.printf("%-30s %-11s %10.3f %10s %12s\n", file, engine, ms,
+            rate, alloc);
+    }
+
+    // Give a usage message and stop.
+    private static void usage() {
+        System.err.println(
+            "Usage: java pecan.Benchmark [-s size] [-w warmups]" +
+            " [-i iterations] [-r seed] [grammar...]\n");
+        System.exit(1);
+    }
+}
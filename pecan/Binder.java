@@ -6,6 +6,7 @@ import java.io.*;
 import java.util.*;
 import static pecan.Op.*;
 import static pecan.Node.Flag.*;
+import static pecan.Node.Count.*;
 import static java.lang.Character.*;
 
 /* Carry out binding:
@@ -18,7 +19,9 @@ Check consistency of arities of actions.
 Check that sets consists of distinct characters.
 Check that ranges are non-empty.
 Check that numerical character codes are in the range 0..1114111.
-Check whether the grammar has text or tokens as input. */
+Check whether the grammar has text or tokens as input.
+Resolve each category name to its number, in the SEQ count.
+Cache the decoded text of literals. */
 
 class Binder implements Testable {
     private boolean switchTest;
@@ -41,6 +44,8 @@ class Binder implements Testable {
         Test.run(binder, args);
     }
 
+    public Testable copy() { return new Binder(); }
+
     // Run the binder on the given source, check type of input.
     public Node run(Source src) {
         source = src;
@@ -51,6 +56,7 @@ class Binder implements Testable {
         arities.clear();
         collect(root);
         scan(root);
+        if (root.op() != Error) root.cache();
         return root;
     }
 
@@ -79,7 +85,8 @@ class Binder implements Testable {
         case Error: case Temp: case List: case Empty: case Eot: break;
         case And: case Or: case Opt: case Any: case Some: case Drop: break;
         case Has: case Not: case See: case Mark: case Tag: break;
-        case Success: case Fail: break;
+        case Success: case Fail: case Keys: case Span: case Until:
+            break;
         case Point: case Cat: scanCat(node); break;
         case Rule: scanRule(node); break;
         case Id: scanId(node); break;
@@ -92,10 +99,14 @@ class Binder implements Testable {
         }
     }
 
-    // Check not token input.
+    // Check not token input. Resolve a category name once, so that engines
+    // don't need to look it up for every character tested.
     private void scanCat(Node node) {
         if (switchTest) return;
         if (root.has(TI)) err(node, "text matcher in a token parser");
+        if (node.op() == Cat) {
+            node.set(SEQ, Category.valueOf(node.rawText()).ordinal());
+        }
     }
 
     // Check that a rule name is not a duplicate.
@@ -16,6 +16,12 @@ category is its two letter abbreviation, as defined by the Unicode standard and
 as used in grammars. The names are in alphabetic order. Each category has a
 bitset giving its ascii content.
 
+The category of a character is looked up without allocation, using a direct
+table for ascii characters, built from the bitsets. Grammars refer to
+categories by number, i.e. by ordinal. The Binder resolves each category name
+in a grammar to its number once, and the Evaluator and the bytecode produced
+by the Generator test a character against that number, using the same tables.
+
 The main method with no command line arguments carries out tests. The main
 method with argument -g generates two arrays of bytes, as binary files
 table1.bin and table2.bin. They are read in and used as a two-stage table for
@@ -42,14 +48,22 @@ enum Category {
     Cc, Cf, Cn, Co, Cs, Ll, Lm, Lo, Lt, Lu, Mc, Me, Mn, Nd, Nl, No, Pc, Pd, Pe,
     Pf, Pi, Po, Ps, Sc, Sk, Sm, So, Zl, Zp, Zs;
 
-    final BitSet ascii;
+    final BitSet ascii = new BitSet();
     private static byte[] table1, table2;
+    private static final Category[] all = values();
+    private static final byte[] asciiTable = new byte[128];
 
-    Category() {
-        ascii = new BitSet();
-        int type = ordinal();
-        for (int ch = 0; ch < 128; ch++) {
-            if (Character.getType(ch) == type) ascii.set(ch);
+    // Fill in the ascii bitsets and the ascii table. This can't be done in the
+    // constructor, because javaType isn't available until all the categories
+    // have been constructed.
+    static {
+        for (Category cat : all) {
+            int type = javaType(cat);
+            for (int ch = 0; ch < 128; ch++) {
+                if (Character.getType(ch) != type) continue;
+                cat.ascii.set(ch);
+                asciiTable[ch] = (byte) cat.ordinal();
+            }
         }
     }
 
@@ -70,9 +84,12 @@ enum Category {
     }
 
     // Get the category of a unicode character.
-    static Category get(int ch) {
-        Category[] cats = values();
-        return cats[table2[(table1[ch>>8]&255)*256+(ch&255)]];
+    static Category get(int ch) { return all[index(ch)]; }
+
+    // Get the number of the category of a unicode character.
+    static int index(int ch) {
+        if (ch < 128) return asciiTable[ch];
+        return table2[(table1[ch>>8]&255)*256+(ch&255)];
     }
 
     private static void readFiles() {
@@ -134,7 +151,7 @@ enum Category {
 
     // Check the symbols are in alphabetical order. Check the generated tables
     // against the Java library, for some early characters where the Unicode
-    // version isn't a problem.
+    // version isn't a problem, and check the ascii fast path against them.
     private static void test() {
         Category[] values = Category.values();
         for (int i = 0; i < values.length - 1; i++) {
@@ -148,7 +165,11 @@ enum Category {
             int cat1 = javaType(get(ch));
             int cat2 = Character.getType(ch);
             if (cat1 != cat2) throw new Error("Bad tables " + ch);
+            int n = table2[(table1[ch>>8]&255)*256+(ch&255)];
+            assert(index(ch) == n);
+            assert(ch >= 128 || all[n].ascii.get(ch));
         }
+        assert(Nd.ascii.cardinality() == 10 && Lu.ascii.get('A'));
         System.out.println("Category class OK");
     }
 
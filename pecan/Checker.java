@@ -53,6 +53,8 @@ class Checker implements Testable {
         Test.run(checker, args);
     }
 
+    public Testable copy() { return new Checker(); }
+
     // Run the checker on the given source text. Repeat scanning until no flags
     // change. Check and report any problems.
     public Node run(Source source) {
@@ -114,6 +116,9 @@ class Checker implements Testable {
             case See: scanSee(node); break;
             case Tag: case Char: case Text: case Set: scanMatch(node); break;
             case Point: case Cat: case Range: scanMatch(node); break;
+            case Keys: scanMatch(node); break;
+            case Span: scanSpan(node); break;
+            case Until: scanUntil(node); break;
             case Success: scanSuccess(node); break;
             case Fail: scanFail(node); break;
             case Split: case Eot: scanSplit(node); break;
@@ -178,7 +183,21 @@ class Checker implements Testable {
         node.set(WF);
     }
 
-    // Tag, Char, Text, Set, Point, Cat, Range.
+    // A span, made by a transform from a loop x* or x+, has the loop's flags.
+    private void scanSpan(Node node) {
+        if (switchTest) return;
+        node.flags(node.flags() | node.left().flags());
+    }
+
+    // Until, made by a transform from (x! .)*, never fails.
+    private void scanUntil(Node node) {
+        if (switchTest) return;
+        node.set(SN);
+        node.set(SP);
+        node.set(WF);
+    }
+
+    // Tag, Char, Text, Set, Point, Cat, Range, Keys.
     // A text string has implicit backtracking, e.g. "xy" == ['x' 'y']
     private void scanMatch(Node node) {
         if (switchTest) return;
@@ -7,15 +7,18 @@ for translations. */
 
 public enum Code {
     ACT, AND, ARITY, BACK, BOTH, CAT, DO, DROP, EITHER, EOT, GO, HAS, HIGH,
-    LOOK, LOW, MANY, MARK, MAYBE, NOT, ONE, OR, POINT, SEE, SET, SPLIT, START,
-    STOP, STRING, TAG;
+    KEYS, LOOK, LOW, MANY, MARK, MAYBE, NOT, ONE, OR, POINT, SEE, SET, SPAN,
+    SPLIT, START, STOP, STRING, TAG, UNTIL;
 
-    // Whether an opcode has an operand.
+    // Whether an opcode has an operand. Optionally, OR, ONE and MANY have an
+    // operand 1, meaning no input position was saved, because the preceding
+    // subexpression can't fail after progress.
     boolean hasArg() {
         switch (this) {
             case ACT: case ARITY: case BACK: case BOTH: case CAT: case DROP:
-            case EITHER: case GO: case HIGH: case LOW: case MARK: case SET:
-            case SPLIT: case START: case STRING: case TAG:
+            case EITHER: case GO: case HIGH: case KEYS: case LOW: case MARK:
+            case SET: case SPAN: case SPLIT: case START: case STRING:
+            case TAG: case UNTIL:
                 return true;
             default:
                 return false;
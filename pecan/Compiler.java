@@ -2,7 +2,9 @@
 
 package pecan;
 
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import static pecan.Op.*;
 import static pecan.Node.Flag.*;
 import static pecan.Node.Count.*;
@@ -15,15 +17,35 @@ inserted into it.
 
 The Formats class is used to set up the print formats. For each node, a print
 format is attached and the BR flag is set if brackets are required, then the
-Pretty class is used to print out the functions. */
+Pretty class is used to print out the functions.
+
+If the switch, case and label formats are given, a choice between alternatives
+which start with disjoint sets of ascii characters, in a text grammar, is
+compiled as a single dispatch on the next character. Each alternative must be
+unable to succeed without progress, and must have no markers, actions or
+lookaheads before its first character, so that skipping it is the same as
+trying it and having it fail without progress. Characters which would need
+escaping in a label, i.e. controls, quotes, backslash and percent, prevent a
+dispatch.
+
+The functions are written out one rule at a time, so that the output for a
+huge grammar is streamed rather than built up as one string. Once lifting has
+been done, the rules are independent, so they can optionally be compiled and
+printed in parallel, each with its own Pretty object, and then written out in
+their original order. The output is the same as when compiling serially. */
 
 class Compiler implements Testable {
     private boolean switchTest;
     private Formats formats;
     private Pretty pretty;
+    private boolean tokens;
+    private int threads = 1, inline;
+    private boolean optimise;
 
     // Do unit testing on previous classes, then check the switch is complete,
-    // then run the Compiler unit tests, using C-like formats.
+    // then run the Compiler unit tests, using C-like formats, then the tests of
+    // dispatch and keys, using Java-like formats with switch expressions and
+    // with the optimising transforms switched on.
     public static void main(String[] args) {
         if (args.length == 0) Stacker.main(args);
         if (args.length == 0) Formats.main(args);
@@ -47,22 +69,81 @@ class Compiler implements Testable {
         formats.fillDefaults(1, "file");
         compiler.formats(formats);
         Test.run(compiler, args);
+        if (args.length > 0) return;
+        formats = new Formats();
+        formats.readLine(1, "file", "comment = '// %s'");
+        formats.readLine(1, "file",
+            "define = 'boolean %s() { %n return %r; %n}'");
+        formats.readLine(1, "file",
+            "switch = 'switch (next()) { %n %l %n default: yield false; %n}'");
+        formats.readLine(1, "file", "case = '%s yield %l;'");
+        formats.readLine(1, "file", "label = \"case '%c':\"");
+        formats.fillDefaults(1, "file");
+        compiler.formats(formats);
+        compiler.optimise(true);
+        Test.run(compiler, new String[] { "tests/Compiler2.txt" });
+        compiler.optimise(false);
+        testParallel(compiler);
+    }
+
+    // Check that compiling some shipped grammars in parallel gives the same
+    // output as compiling them serially.
+    private static void testParallel(Compiler compiler) {
+        String[] files = {
+            "docs/development/sum.txt", "docs/compilation/sum.txt",
+            "docs/tokens/scan.txt", "docs/pecan.txt", "docs/c/c-scan.txt",
+        };
+        for (String file : files) {
+            Source source = new Source(new File(file));
+            int n = source.indexOf("\n==========");
+            Source grammar = n < 0 ? source : source.sub(0, n + 1);
+            compiler.threads(1);
+            String serial = compiler.run(grammar);
+            compiler.threads(4);
+            String parallel = compiler.run(grammar);
+            assert(parallel.equals(serial)) : file;
+        }
+        compiler.threads(1);
     }
 
     // Set the print formats for compiling.
     void formats(Formats fs) { formats = fs; }
 
+    // Inline rules with bodies of up to the given number of nodes.
+    void inline(int size) { inline = size; }
+
+    // Switch on the transforms which need extra support functions, i.e. keys
+    // and until.
+    void optimise(boolean on) { optimise = on; }
+
+    // Set the number of threads to compile rules with.
+    void threads(int n) { threads = Math.max(1, n); }
+
+    // Create a fresh compiler sharing the same formats.
+    public Testable copy() {
+        Compiler compiler = new Compiler();
+        compiler.formats = formats;
+        compiler.inline = inline;
+        compiler.optimise = optimise;
+        return compiler;
+    }
+
+    // Compile a grammar, returning the functions or an error message.
     public String run(Source grammar) {
-        pretty = new Pretty();
-        pretty.tab(formats.get(TAB));
-        pretty.escapes(
-            formats.get(ESCAPE1),
-            formats.get(ESCAPE2),
-            formats.get(ESCAPE4)
-        );
+        StringWriter out = new StringWriter();
+        String e = write(grammar, out);
+        return e != null ? e : out.toString();
+    }
+
+    // Compile a grammar, writing the functions out one rule at a time. Return
+    // an error message, or null. Nothing is written if there is an error.
+    String write(Source grammar, Writer out) {
+        pretty = printer();
+        pretty.writer(out);
         Stacker stacker = new Stacker();
         Node root = stacker.run(grammar);
         if (root.op() == Error) return "Error: " + root.note();
+        tokens = root.has(TI);
         int net = root.left().get(NET);
         if (net != 1) {
             return "Error: first rule produces " + net + " items\n";
@@ -77,12 +158,48 @@ class Compiler implements Testable {
         }
         Transformer transformer = new Transformer();
         transformer.expandSee(root);
+        if (optimise) transformer.untils(root);
         transformer.lift(root);
+        transformer.inline(root, inline);
+        if (optimise) transformer.keys(root);
         Checker checker = new Checker();
         checker.apply(root);
         declare(root);
-        compile(root);
-        return pretty.text();
+        if (threads > 1) compileParallel(root, out);
+        else compile(root);
+        pretty.flush();
+        return null;
+    }
+
+    // Make a pretty printer set up according to the formats.
+    private Pretty printer() {
+        Pretty p = new Pretty();
+        p.tab(formats.get(TAB));
+        p.escapes(
+            formats.get(ESCAPE1),
+            formats.get(ESCAPE2),
+            formats.get(ESCAPE4)
+        );
+        return p;
+    }
+
+    // Compile and print the rules in parallel, each with its own printer, and
+    // write out the results in order, as they become available.
+    private void compileParallel(Node root, Writer out) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        List<ForkJoinTask<String>> tasks = new ArrayList<>();
+        for (Node node = root; node.op() == List; node = node.right()) {
+            Node rule = node.left();
+            boolean last = node.right().op() == Empty;
+            tasks.add(pool.submit(() -> {
+                Pretty p = printer();
+                printRule(rule, last, p);
+                return p.text();
+            }));
+        }
+        pool.shutdown();
+        try { for (ForkJoinTask<String> task : tasks) out.write(task.join()); }
+        catch (IOException e) { throw new Error(e); }
     }
 
     // Check for and report inaccessible alternatives or actions at the start of
@@ -118,6 +235,7 @@ class Compiler implements Testable {
             node = node.right();
         }
         printf("%n");
+        pretty.flush();
     }
 
     // Compile a node by giving it a print format.
@@ -145,6 +263,9 @@ class Compiler implements Testable {
             case Set: compileSet(node); break;
             case Range: compileRange(node); break;
             case Split: compileSplit(node); break;
+            case Keys: compileKeys(node); break;
+            case Span: compileSpan(node); break;
+            case Until: compileUntil(node); break;
             case Point: compilePoint(node); break;
             case Cat: compileCat(node); break;
             case Mark: compileMark(node); break;
@@ -157,16 +278,22 @@ class Compiler implements Testable {
     // Compile a list of rules.
     private void compileList(Node node) {
         if (switchTest) return;
-        String comment = formats.get(COMMENT);
-        String[] lines = node.left().text().split("\n");
-        for (String line : lines) printf(comment + "%n", line);
-        compile(node.left());
-        pretty.printf(node.left());
-        printf("%n");
-        if (node.right().op() != Empty) printf("%n");
+        printRule(node.left(), node.right().op() == Empty, pretty);
+        pretty.flush();
         compile(node.right());
     }
 
+    // Compile a rule and print it with a comment, using the given printer.
+    private void printRule(Node rule, boolean last, Pretty p) {
+        String comment = formats.get(COMMENT);
+        String[] lines = rule.text().split("\n");
+        for (String line : lines) p.printf(comment + "%n", line);
+        compile(rule);
+        p.printf(rule);
+        p.printf("%n");
+        if (! last) p.printf("%n");
+    }
+
     // Reached end of list of rules.
     private void compileEmpty(Node node) {
         if (switchTest) return;
@@ -207,10 +334,96 @@ class Compiler implements Testable {
         for (Node n = node; n.op() == Or; n = n.right()) {
             if (n.left().has(FP)) simple = false;
         }
+        if (compileSwitch(node)) return;
         if (simple) compileSimpleOr(node);
         else compileComplexOr(node);
     }
 
+    // Compile p / q / ... as a dispatch on the next character, if possible.
+    // Each alternative gets a case, with a label for each of its first
+    // characters. Put the cases on one line, or one per line.
+    private boolean compileSwitch(Node node) {
+        String label = formats.get(LABEL), cs = formats.get(CASE);
+        String sw = formats.get(SWITCH);
+        if (tokens || sw.equals("") || cs.equals("") || label.equals("")) {
+            return false;
+        }
+        List<Node> alts = new ArrayList<>();
+        List<String> labels = new ArrayList<>();
+        Set<Integer> seen = new HashSet<>();
+        Node n = node;
+        for (; n.op() == Or; n = n.right()) alts.add(n.left());
+        alts.add(n);
+        for (Node alt : alts) {
+            if (alt.has(SN)) return false;
+            Set<Integer> first = first(alt, new HashSet<>());
+            if (first == null || first.isEmpty()) return false;
+            String s = "";
+            for (int ch : first) {
+                if (! seen.add(ch) || ! labelled(ch)) return false;
+                if (! s.equals("")) s += " ";
+                s += label.replace("%c", "" + (char) ch);
+            }
+            labels.add(cs.replace("%s", s));
+        }
+        for (Node alt : alts) {
+            compile(alt);
+            bracket(Or, alt);
+        }
+        int i = 0;
+        for (n = node; n.op() == Or; n = n.right()) {
+            String f = labels.get(i++) + " %g";
+            if (n.right().op() == Or) f += "%r";
+            else f += labels.get(i).replace("%l", "%r");
+            if (n == node) f = sw.replace("%l", f);
+            n.format(f);
+        }
+        return true;
+    }
+
+    // Check whether a character can be printed in a label without escaping.
+    private boolean labelled(int ch) {
+        return ' ' <= ch && ch <= '~' && "'\"\\%".indexOf(ch) < 0;
+    }
+
+    // Find the set of ascii characters which a node can start with, when it
+    // succeeds or progresses, or return null if unknown. Avoid looping through
+    // recursive rules.
+    private Set<Integer> first(Node node, Set<Node> visited) {
+        Set<Integer> set = new TreeSet<>();
+        switch (node.op()) {
+            case Char: set.add(node.charCode()); break;
+            case Text: set.add(node.points()[0]); break;
+            case Set: for (int ch : node.points()) set.add(ch); break;
+            case Range:
+                if (node.high() >= 128) return null;
+                for (int ch = node.low(); ch <= node.high(); ch++) set.add(ch);
+                break;
+            case Fail: break;
+            case Id:
+                if (! visited.add(node.ref())) return null;
+                set = first(node.ref().right(), visited);
+                visited.remove(node.ref());
+                return set;
+            case And:
+                if (node.left().has(SN)) return null;
+                return first(node.left(), visited);
+            case Or:
+                Set<Integer> left = first(node.left(), visited);
+                Set<Integer> right = first(node.right(), visited);
+                if (left == null || right == null) return null;
+                set.addAll(left);
+                set.addAll(right);
+                break;
+            case Some: case See: return first(node.left(), visited);
+            case Keys: for (String k : node.keys()) set.add(k.codePointAt(0));
+                break;
+            default: return null;
+        }
+        for (int ch : set) if (ch >= 128) return null;
+        return set;
+    }
+
     // Compile p / q / ... where no alternative can fail after progress. Fill as
     // many alternatives on a line as possible before breaking.
     private void compileSimpleOr(Node node) {
@@ -275,12 +488,18 @@ class Compiler implements Testable {
         }
     }
 
-    // Compile [p] when p has no actions or errors.
+    // Compile [p] when p has no actions or errors, or as p if that is
+    // equivalent.
     private void compileSee(Node node) {
         if (switchTest) return;
         String see = formats.get(SEE);
         String go = formats.get(GO);
         compile(node.left());
+        if (node.redundant()) {
+            bracket(Or, node.left());
+            node.format("%l");
+            return;
+        }
         bracket(Or, node.left());
         prefix(go, node.left(), false);
         node.format(see.replace("%l","%n%t%l%n"));
@@ -362,6 +581,37 @@ class Compiler implements Testable {
         node.format(formats.get(SPLIT));
     }
 
+    // Compile "a" / "b" / ..., transformed into keys, as a call with the number
+    // of keys and a list of them. A key comes before any of its prefixes.
+    private void compileKeys(Node node) {
+        if (switchTest) return;
+        String key = formats.get(KEY);
+        int n = 1;
+        Node k = node.left();
+        for (; k.op() == Or; k = k.right()) {
+            k.left().format(key);
+            k.format("%l,%f%r");
+            n++;
+        }
+        k.format(key);
+        node.format(formats.get(KEYS).replace("%d", "" + n));
+    }
+
+    // Compile a span, which only arises if loops haven't been lifted out, as
+    // its loop.
+    private void compileSpan(Node node) {
+        if (switchTest) return;
+        compile(node.left());
+        node.format("%l");
+    }
+
+    // Compile (x! .)*, transformed into an until node, as a call with x.
+    private void compileUntil(Node node) {
+        if (switchTest) return;
+        node.left().format(formats.get(UNTIL));
+        node.format("%l");
+    }
+
     // Compile .
     private void compilePoint(Node node) {
         if (switchTest) return;
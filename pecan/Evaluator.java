@@ -3,8 +3,11 @@
 package pecan;
 
 import java.util.*;
+import java.util.concurrent.*;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static pecan.Op.*;
 import static pecan.Node.Flag.*;
+import static pecan.Node.Count.*;
 
 /* Provide symbolic execution of a grammar. This works directly from the tree
 nodes, and can be used for testing, and for tracing. It also effectively defines
@@ -14,12 +17,69 @@ For a token parser, the input consists of tag names representing tokens,
 separated by white space. The tokens are translated according to the literal
 name rules.
 
-The output describes the external calls generated, with one line per call. */
+The output describes the external calls generated, with one line per call.
+A lookahead [x] where x contains actions or markers is parsed once, with the
+output and markers produced by x kept provisionally, and discarded along with
+the progress if x fails, rather than being parsed as x& x.
+
+Tracing is done by recording events with a Tracer. With tracing switched on,
+the events are printed as they happen. With recording switched on, recent
+events are kept in a bounded buffer, and printed on stderr only if a parse
+fails. With profiling switched on, statistics about the rules are
+collected by a Profiler, and reported on stderr after each parse.
+
+An input which consists of independent records, each ending with a delimiter,
+can be parsed record by record, with the grammar applied to each record
+separately, and the records shared out between threads. The outputs and error
+messages are merged back in input order. Records are subsources of the input,
+so error messages have the right line numbers.
+
+An input which is a long repetition of some rule, without clean delimiters, can
+be parsed speculatively. The input is divided into chunks at guessed item
+boundaries, i.e. line starts. Each chunk is parsed in parallel, as a sequence
+of items, and each item is memoized. Then a normal sequential parse is done in
+which memoized items are replayed instead of parsed. Items which were not
+parsed speculatively, e.g. because a guessed boundary was wrong, are parsed
+normally, so the result is identical to a sequential parse.
+
+A memo entry records a call of a rule at some position, outside any lookahead,
+with the value of start on entry. It holds the end position, the value of start
+afterwards, the success or failure, the output produced, a summary of the
+markers recorded, and the extent of the input examined, i.e. a bound beyond
+which no character was looked at. When the rule is called again at the same
+position with the same start value, the entry is replayed instead.
+
+In incremental mode, for use in an editor, the memo entries for all rules are
+kept from one parse to the next. The next input is compared with the previous
+one to find the edited range. Entries which examined only text before the edit
+are kept, entries which lie wholly after it are shifted, and the rest are
+dropped. Then only the rules affected by the edit are parsed again, and the
+result is identical to a full parse.
+
+In recognising mode, where only acceptance or rejection matters, each input is
+parsed first with a recogniser, i.e. an Image of a copy of the grammar with the
+actions and markers stripped out. An accepted input produces no output. A
+rejected input is parsed again with the full grammar, to produce the error
+message. The image has no limits, so with limits set, the full grammar is used
+throughout. The tree for the full grammar isn't built until it is first
+needed, so while inputs are accepted, only the image is held in memory. Once
+built, the tree is shared by copies of the evaluator.
+
+Limits can be set on the number of steps, i.e. nodes visited, the number of
+characters backtracked over by lookaheads, and the time taken, so that one
+adversarial input can't tie up a thread indefinitely. A parse which exceeds a
+limit is abandoned, and the result is a resource limit error, naming the limit,
+and the rule being parsed at the time, at the position reached. */
 
 public class Evaluator implements Testable {
     private boolean switchTest;
-    private boolean tracing = false, skipTrace = false;
+    private boolean tracing = false, recording = false, skipTrace = false;
+    private boolean profiling = false;
+    private Tracer tracer;
+    private Profiler profiler;
     private Node grammar;
+    private Node[] nodes;
+    private Full full;
     private boolean charInput, ok;
     private Source source;
     private String input;
@@ -27,11 +87,54 @@ public class Evaluator implements Testable {
     private TreeSet<String> failures;
     private StringBuffer output;
     private int outCount;
+    private Node memoRule;
+    private Map<Long,Memo> memo;
+    private boolean memoizing, incremental;
+    private boolean recognising;
+    private Image recogniser;
+    private Source grammarSource;
+    private long maxSteps, maxBack, maxTime;
+    private long steps, backtracked, checkAt, deadline;
+    private boolean limiting;
+    private Node rule;
+    private List<Memo> fresh;
+    private List<String> markLog;
+    private int lastReset, far;
+    private String previous;
+
+    // A memoized call of a rule at a position. The output is a range of a
+    // text. The markers recorded are summarised by the position of the last,
+    // the names recorded there, and whether earlier ones were cleared.
+    private static class Memo {
+        int at, start, end, startAfter, far, markAt;
+        boolean ok, reset;
+        String text;
+        int from, to;
+        List<String> names;
+    }
+
+    // The full grammar tree and its numbering, built on first use from the
+    // source, and shared between copies of an evaluator.
+    private static class Full {
+        final Source source;
+        Node grammar;
+        Node[] nodes;
+        Full(Source s) { source = s; }
+    }
+
+    // Thrown to abandon a parse which has exceeded a limit, given its name.
+    private static class Limit extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        Limit(String name) { super(name, null, false, false); }
+    }
 
-    // Do unit testing on the Stacker class, then check the switch is complete,
-    // then run the Evaluator unit tests.
+    // Do unit testing on the Stacker, Tracer and Profiler classes, then check
+    // the switch is complete, then test parsing by records, speculative
+    // parsing and incremental parsing, then run the Evaluator unit tests.
     public static void main(String[] args) {
         if (args.length == 0) Stacker.main(args);
+        if (args.length == 0) Tracer.main(args);
+        if (args.length == 0) Profiler.main(args);
         Evaluator evaluator = new Evaluator();
         evaluator.switchTest = true;
         for (Op op : Op.values()) {
@@ -39,48 +142,356 @@ public class Evaluator implements Testable {
             evaluator.parse(node);
         }
         evaluator.switchTest = false;
+        if (args.length == 0) testRecords();
+        if (args.length == 0) testSpeculation();
+        if (args.length == 0) testAwait();
+        if (args.length == 0) testIncremental();
+        if (args.length == 0) testRecognising();
+        if (args.length == 0) testLimits();
+        if (args.length == 0) testBuffered();
+        if (args.length == 0) testSpans();
         Test.run(evaluator, args);
     }
 
     // Set up a grammar from its source, or run it on the given source.
     public String run(Source source) {
-        if (grammar == null) {
+        if (full == null) {
             System.err.println("Error: No grammar has been set up");
             System.exit(1);
         }
+        if (recognising && recogniser != null && ! incremental && ! tracing &&
+            ! recording && ! profiling && ! limited()) {
+            if (recognise(source)) return "";
+        }
+        full();
         prepare(source);
-        return runParser();
+        if (! incremental || tracing || recording) return runParser();
+        adjust();
+        memoRule = null;
+        memoizing = true;
+        String result = runParser();
+        previous = input;
+        return result;
+    }
+
+    // Parse an input consisting of records, each ending with the delimiter
+    // (except perhaps the last), using the given number of threads. Each
+    // thread handles a contiguous run of records with its own evaluator. When
+    // tracing, recording or profiling, one thread is used, so that the output
+    // from different records isn't mixed together.
+    String runRecords(Source source, String delimiter, int threads) {
+        List<Source> records = new ArrayList<>();
+        int n = source.length();
+        for (int start = 0; start < n; ) {
+            int end = -1;
+            if (! delimiter.isEmpty()) end = source.indexOf(delimiter, start);
+            end = end < 0 ? n : end + delimiter.length();
+            records.add(source.sub(start, end));
+            start = end;
+        }
+        String[] outputs = new String[records.size()];
+        source.index();
+        if (tracing || recording || profiling) threads = 1;
+        threads = Math.max(1, Math.min(threads, records.size()));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        int chunks = Math.min(records.size(), 4 * threads);
+        for (int c = 0; c < chunks; c++) {
+            int from = c * records.size() / chunks;
+            int to = (c + 1) * records.size() / chunks;
+            Evaluator evaluator = threads == 1 ? this : (Evaluator) copy();
+            futures.add(pool.submit(() -> {
+                for (int i = from; i < to; i++) {
+                    outputs[i] = evaluator.run(records.get(i));
+                }
+            }));
+        }
+        pool.shutdown();
+        for (Future<?> f : futures) await(pool, f);
+        return String.join("", outputs);
+    }
+
+    // Parse an input which mainly consists of a repetition of one rule, using
+    // speculative parallel parsing of chunks. The rule is the one called at the
+    // start of the body of the first loop reachable from the first rule. When
+    // tracing, recording, profiling or parsing incrementally, the input is
+    // parsed sequentially instead.
+    String runSpeculative(Source source, int threads) {
+        full();
+        Node rule = grammar.op() == Error ? null : repeatedRule();
+        if (rule == null || tracing || recording || profiling || incremental) {
+            return run(source);
+        }
+        String text = source.rawText();
+        int chunks = Math.max(1, 4 * threads);
+        int[] starts = new int[chunks + 1];
+        for (int c = 1; c < chunks; c++) {
+            int p = Math.max(starts[c-1], c * text.length() / chunks);
+            starts[c] = boundary(text, p);
+        }
+        starts[chunks] = text.length();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Map<Long,Memo>>> futures = new ArrayList<>();
+        for (int c = 0; c < chunks; c++) {
+            int from = starts[c], to = starts[c+1];
+            if (from >= to) continue;
+            Evaluator evaluator = (Evaluator) copy();
+            futures.add(pool.submit(
+                () -> evaluator.speculate(source, text, rule, from, to)));
+        }
+        pool.shutdown();
+        memo = new HashMap<>();
+        for (Future<Map<Long,Memo>> f : futures) {
+            await(pool, f).forEach(memo::putIfAbsent);
+        }
+        memoRule = rule;
+        memoizing = false;
+        prepare(source, text);
+        String result = runParser();
+        memo = null;
+        memoRule = null;
+        return result;
+    }
+
+    // Wait for the result of a task, passing on any exception it throws. If
+    // interrupted, stop the remaining tasks and keep the interrupt status.
+    private static <T> T await(ExecutorService pool, Future<T> f) {
+        try { return f.get(); }
+        catch (ExecutionException e) { throw new Error(e.getCause()); }
+        catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new Error(e);
+        }
+    }
+
+    // Find a guessed item boundary at or after p, namely the start of a line
+    // which doesn't start with a space, or the end of the text.
+    private int boundary(String text, int p) {
+        if (p == 0) return 0;
+        while (p < text.length()) {
+            if (text.charAt(p-1) == '\n' && text.charAt(p) > ' ') return p;
+            p++;
+        }
+        return p;
+    }
+
+    // Parse items from one chunk of the text, until failure or until the end of
+    // the chunk is passed. Return the memo entries for the items.
+    private Map<Long,Memo> speculate(
+        Source s, String text, Node rule, int from, int to
+    ) {
+        prepare(s, text);
+        memo = new HashMap<>();
+        memoRule = rule;
+        memoizing = true;
+        in = start = from;
+        // A limit ends the speculation, leaving the sequential parse to
+        // report it.
+        try {
+            while (in < to) {
+                int at = in;
+                parse(rule);
+                if (! ok || in == at) break;
+            }
+        }
+        catch (Limit e) {}
+        finish();
+        Map<Long,Memo> items = memo;
+        memo = null;
+        memoRule = null;
+        return items;
+    }
+
+    // Find the rule which is repeated, breadth first from the first rule.
+    private Node repeatedRule() {
+        Set<Node> seen = new HashSet<>();
+        List<Node> rules = new ArrayList<>();
+        rules.add(grammar.left());
+        seen.add(grammar.left());
+        while (! rules.isEmpty()) {
+            List<Node> next = new ArrayList<>();
+            for (Node rule : rules) {
+                Node found = repeatedRule(rule.right(), seen, next);
+                if (found != null) return found;
+            }
+            rules = next;
+        }
+        return null;
+    }
+
+    private Node repeatedRule(Node node, Set<Node> seen, List<Node> next) {
+        if (node.op() == Any || node.op() == Some) {
+            Node x = node.left();
+            if (x.op() == And) x = x.left();
+            return x.op() == Id ? x.ref() : null;
+        }
+        if (node.op() == Id) {
+            if (seen.add(node.ref())) next.add(node.ref());
+            return null;
+        }
+        Node found = null;
+        if (node.left() != null) found = repeatedRule(node.left(), seen, next);
+        if (found == null && node.right() != null) {
+            found = repeatedRule(node.right(), seen, next);
+        }
+        return found;
     }
 
-    // Set up a grammar for subsequent tests.
+    // Set up a grammar for subsequent tests. In recognising mode, only the
+    // image is made, unless the grammar has errors, in which case the full
+    // grammar is needed for the error message.
     public String grammar(Source source) {
-        Stacker stacker = new Stacker();
-        grammar = stacker.run(source);
-        charInput = ! grammar.has(TI);
-        if (grammar.op() == Error) return grammar.note();
+        grammarSource = source;
+        full = new Full(source);
+        grammar = null;
+        nodes = null;
+        recogniser = null;
+        if (recognising) recogniser = recogniser(source);
+        if (recogniser == null) full();
+        memo = null;
+        previous = null;
+        if (grammar != null && grammar.op() == Error) return grammar.note();
         else return null;
      }
 
+    // Make sure the full grammar is available. It is built once, under a lock
+    // so that copies running on other threads can share it, and the nodes are
+    // numbered once, with the numbering shared by the copies.
+    private void full() {
+        if (grammar != null) return;
+        synchronized (full) {
+            if (full.grammar == null) {
+                full.grammar = prepareGrammar(full.source, false);
+                full.nodes = full.grammar.number();
+            }
+            grammar = full.grammar;
+            nodes = full.nodes;
+        }
+        charInput = ! grammar.has(TI);
+    }
+
+    // Parse and transform a grammar, stripping it to make a recogniser if
+    // requested.
+    private Node prepareGrammar(Source source, boolean strip) {
+        Node root = new Stacker().run(source);
+        if (root.op() == Error) return strip ? null : root;
+        Transformer transformer = new Transformer();
+        if (strip) transformer.strip(root);
+        transformer.keys(root);
+        transformer.untils(root);
+        transformer.spans(root);
+        root.cache();
+        return root;
+    }
+
+    // Make an image of the stripped grammar, or return null if the grammar
+    // has errors. The stripped tree is then discarded.
+    private Image recogniser(Source source) {
+        Node root = prepareGrammar(source, true);
+        return root == null ? null : new Image(root);
+    }
+
+    // Switch recognising mode on or off, making the recogniser if needed.
+    void recognising(boolean on) {
+        recognising = on;
+        if (on && grammarSource != null && recogniser == null) {
+            recogniser = recogniser(grammarSource);
+        }
+    }
+
+    // Set the limits on steps, backtracked characters and milliseconds for
+    // each parse, with zero meaning no limit.
+    void limits(long steps, long back, long millis) {
+        maxSteps = steps;
+        maxBack = back;
+        maxTime = millis;
+    }
+
     public void tracing(boolean on) { tracing = on; }
 
+    public void recording(boolean on) { recording = on; }
+
+    public void profiling(boolean on) { profiling = on; }
+
+    // Switch incremental mode on or off, discarding any memo entries.
+    void incremental(boolean on) {
+        incremental = on;
+        memo = null;
+        previous = null;
+    }
+
+    // Create a fresh evaluator with the same grammar and settings.
+    public Testable copy() {
+        Evaluator evaluator = new Evaluator();
+        evaluator.full = full;
+        evaluator.grammar = grammar;
+        evaluator.nodes = nodes;
+        evaluator.charInput = charInput;
+        evaluator.recognising = recognising;
+        evaluator.recogniser = recogniser;
+        evaluator.grammarSource = grammarSource;
+        evaluator.limits(maxSteps, maxBack, maxTime);
+        evaluator.recording = recording;
+        evaluator.profiling = profiling;
+        return evaluator;
+    }
+
     // Get the Evaluator ready to run, with the given input.
-    private void prepare(Source s) {
+    private void prepare(Source s) { prepare(s, s.rawText()); }
+
+    // Get ready with the given input, and its text, shared between threads.
+    private void prepare(Source s, String text) {
         source = s;
-        input = source.rawText();
+        input = text;
         ok = true;
         start = in = out = marked = lookahead = 0;
         failures = new TreeSet<>();
         output = new StringBuffer();
         outCount = 0;
+        markLog = new ArrayList<>();
+        steps = backtracked = 0;
+        deadline = maxTime > 0 ? System.nanoTime() + maxTime * 1000000 : 0;
+        limiting = limited();
+        checkAt = limiting ? 1 : Long.MAX_VALUE;
+        rule = null;
+        fresh = new ArrayList<>();
+        lastReset = far = 0;
+        if (! tracing && ! recording) tracer = null;
+        else {
+            if (tracer == null) tracer = new Tracer(1 << 16, tracing);
+            tracer.start(nodes, input, output);
+        }
+        if (! profiling) profiler = null;
+        else {
+            if (profiler == null) profiler = new Profiler();
+            profiler.start(nodes);
+        }
+    }
+
+    // Check whether any limit is set.
+    private boolean limited() {
+        return maxSteps > 0 || maxBack > 0 || maxTime > 0;
+    }
+
+    // Recognise an input with the image, and report whether it is accepted.
+    private boolean recognise(Source s) {
+        return recogniser.recognize(s.rawText().getBytes(UTF_8)) >= 0;
     }
 
     // Run the parser
     private String runParser() {
-        if (tracing) traceInput();
+        if (tracer != null) tracer.match(in);
         if (grammar.op() == Error) return grammar.note() + "\n";
-        parse(grammar.left());
+        try { parse(grammar.left()); }
+        catch (Limit e) { return limited(e); }
+        finish();
+        if (profiler != null) {
+            System.err.print(profiler.report(in, input.length()));
+        }
         if (in > marked) failures.clear();
         if (! ok) {
+            if (recording && ! tracing) System.err.print(tracer.decode());
             output.setLength(0);
             String s = "";
             for (String mark : failures) {
@@ -94,9 +505,47 @@ public class Evaluator implements Testable {
         return output.toString();
     }
 
+    // Report a parse which has been abandoned because a limit was exceeded.
+    private String limited(Limit e) {
+        finish();
+        if (recording && ! tracing) System.err.print(tracer.decode());
+        String s = "resource limit (" + e.getMessage() + ")";
+        if (rule != null) s += " in " + rule.left().text();
+        output.setLength(0);
+        output.append(source.sub(in,in).error(s));
+        output.append("\n");
+        return output.toString();
+    }
+
+    // Check the limits, which is done at intervals of at most a thousand or
+    // so steps, so that the clock isn't read too often.
+    private void check() {
+        if (maxSteps > 0 && steps > maxSteps) throw new Limit("steps");
+        if (maxBack > 0 && backtracked > maxBack) {
+            throw new Limit("backtracking");
+        }
+        if (maxTime > 0 && System.nanoTime() > deadline) {
+            throw new Limit("time");
+        }
+        checkAt = steps + 1024;
+        if (maxSteps > 0) checkAt = Math.min(checkAt, maxSteps + 1);
+    }
+
+    // Go back to an earlier input position after a lookahead, keeping track
+    // of the number of characters backtracked over.
+    private void back(int saveIn) {
+        if (in == saveIn) return;
+        if (profiler != null) profiler.back(in, saveIn);
+        backtracked += in - saveIn;
+        in = saveIn;
+        if (tracer != null) tracer.back(in);
+        if (maxBack > 0 && backtracked > maxBack) checkAt = steps;
+    }
+
     // Parse according to the given node.
     private void parse(Node node) {
-        if (tracing && ! skipTrace) System.out.println(node.trace());
+        if (++steps >= checkAt) check();
+        if (tracer != null && ! skipTrace) tracer.enter(node, in);
         skipTrace = false;
         switch(node.op()) {
             case Error: case Temp: case List: case Empty: break;
@@ -119,6 +568,9 @@ public class Evaluator implements Testable {
             case Set: parseSet(node); break;
             case Range: parseRange(node); break;
             case Split: parseSplit(node); break;
+            case Keys: parseKeys(node); break;
+            case Span: parseSpan(node); break;
+            case Until: parseUntil(node); break;
             case Point: parsePoint(node); break;
             case Cat: parseCat(node); break;
             case Mark: parseMark(node); break;
@@ -128,12 +580,139 @@ public class Evaluator implements Testable {
         }
     }
 
-    // Parse according to a rule node: parse the right hand side.
+    // Parse according to a rule node: parse the right hand side. The rule is
+    // tracked only if there are limits, to name it in a limit error. When
+    // there are memo entries, parse with the memo bookkeeping instead.
     private void parseRule(Node node) {
         if (switchTest) return;
+        if (memo != null) { parseMemoRule(node); return; }
+        Node saveRule = rule;
+        if (limiting) rule = node;
+        if (profiler != null) profiler.enter(node, in);
+        parse(node.right());
+        if (limiting) rule = saveRule;
+        if (profiler != null) profiler.exit(node, in, ok);
+        if (tracer != null) tracer.exit(node, in, ok);
+    }
+
+    // Parse a rule during incremental or speculative parsing. Replay or record
+    // a memo entry, if memoizing the rule. Keep track of how far the input has
+    // been examined.
+    private void parseMemoRule(Node node) {
+        boolean memoized = lookahead == 0 &&
+            (memoRule == null || node == memoRule);
+        if (memoized) {
+            Memo m = memo.get(key(node, in));
+            if (m != null && m.start == start) { replay(m); return; }
+        }
+        int at = in, saveStart = start, outAt = output.length();
+        int logAt = markLog.size(), saveFar = far;
+        far = at;
+        Node saveRule = rule;
+        rule = node;
+        if (profiler != null) profiler.enter(node, in);
         parse(node.right());
+        rule = saveRule;
+        if (profiler != null) profiler.exit(node, in, ok);
+        if (tracer != null) tracer.exit(node, in, ok);
+        if (memoized && memoizing) record(node, at, saveStart, outAt, logAt);
+        far = Math.max(saveFar, far);
+    }
+
+    // Find the memo key for a rule at a position.
+    private static long key(Node rule, int at) {
+        return ((long) at << 32) | rule.get(NUM);
+    }
+
+    // Record a memo entry for a rule which has just been parsed. The output
+    // text is filled in at the end of the parse.
+    private void record(
+        Node rule, int at, int saveStart, int outAt, int logAt
+    ) {
+        Memo m = new Memo();
+        m.at = at;
+        m.start = saveStart;
+        m.end = in;
+        m.startAfter = start;
+        m.ok = ok;
+        m.far = far;
+        m.from = outAt;
+        m.to = output.length();
+        if (markLog.size() > logAt) {
+            m.markAt = marked;
+            m.reset = lastReset > logAt;
+            int from = Math.max(logAt, lastReset);
+            m.names = new ArrayList<>(markLog.subList(from, markLog.size()));
+        }
+        memo.put(key(rule, at), m);
+        fresh.add(m);
     }
 
+    // Replay a memo entry. An entry recorded earlier in the current parse has
+    // no text yet, so its output is copied from the live output.
+    private void replay(Memo m) {
+        if (m.names != null) {
+            if (m.reset || marked != m.markAt) {
+                marked = m.markAt;
+                failures.clear();
+                lastReset = markLog.size();
+            }
+            failures.addAll(m.names);
+            markLog.addAll(m.names);
+        }
+        if (m.text != null) output.append(m.text, m.from, m.to);
+        else output.append(output.substring(m.from, m.to));
+        in = m.end;
+        start = m.startAfter;
+        ok = m.ok;
+        far = Math.max(far, m.far);
+    }
+
+    // Fill in the output text of the memo entries recorded during a parse.
+    private void finish() {
+        if (fresh.isEmpty()) return;
+        String text = output.toString();
+        for (Memo m : fresh) m.text = text;
+        fresh.clear();
+    }
+
+    // Adjust the memo entries from the previous parse, treating the difference
+    // between the previous input and the current one as a single edit.
+    private void adjust() {
+        if (memo == null || previous == null) {
+            memo = new HashMap<>();
+            return;
+        }
+        String old = previous;
+        if (old.equals(input)) return;
+        int n = Math.min(old.length(), input.length());
+        int edit = 0, same = 0;
+        while (edit < n && old.charAt(edit) == input.charAt(edit)) edit++;
+        while (same < n - edit && old.charAt(old.length() - 1 - same) ==
+            input.charAt(input.length() - 1 - same)) same++;
+        int oldEnd = old.length() - same, delta = input.length() - old.length();
+        Map<Long,Memo> kept = new HashMap<>();
+        for (Map.Entry<Long,Memo> e : memo.entrySet()) {
+            Memo m = e.getValue();
+            if (m.far <= edit) kept.put(e.getKey(), m);
+            else if (Math.min(m.at, m.start) >= oldEnd) {
+                m.at += delta;
+                m.start += delta;
+                m.end += delta;
+                m.startAfter += delta;
+                m.far += delta;
+                if (m.names != null) m.markAt += delta;
+                long num = e.getKey() & 0xFFFFFFFFL;
+                kept.put(((long) m.at << 32) | num, m);
+            }
+        }
+        memo = kept;
+    }
+
+    // Note that the input has been examined up to, but not including, p, if
+    // there are memo entries, which depend on it.
+    private void look(int p) { if (memo != null && p > far) far = p; }
+
     // Parse the rule refered to by an id (without tracing).
     private void parseId(Node node) {
         if (switchTest) return;
@@ -142,8 +721,14 @@ public class Evaluator implements Testable {
     }
 
     // Parse x / y. Parse x, and if it fails without progress, parse y instead.
+    // If x can't fail after progress, there is no need to check.
     private void parseOr(Node node) {
         if (switchTest) return;
+        if (! node.left().has(FP)) {
+            parse(node.left());
+            if (! ok) parse(node.right());
+            return;
+        }
         int saveIn = in;
         parse(node.left());
         if (ok || in > saveIn) return;
@@ -161,16 +746,27 @@ public class Evaluator implements Testable {
     // Parse x?. If x fails but doesn't progress, return success.
     private void parseOpt(Node node) {
         if (switchTest) return;
+        if (! node.left().has(FP)) {
+            parse(node.left());
+            ok = true;
+            return;
+        }
         int saveIn = in;
         parse(node.left());
         if (! ok && in == saveIn) ok = true;
     }
 
-    // Parse x*. Keep parsing x until it fails, then check progress.
+    // Parse x*. Keep parsing x until it fails, then check progress, unless x
+    // can't fail after progress.
     private void parseAny(Node node) {
         if (switchTest) return;
-        int saveIn = in;
         ok = true;
+        if (! node.left().has(FP)) {
+            while (ok) parse(node.left());
+            ok = true;
+            return;
+        }
+        int saveIn = in;
         while (ok) {
             saveIn = in;
             parse(node.left());
@@ -183,6 +779,11 @@ public class Evaluator implements Testable {
         if (switchTest) return;
         parse(node.left());
         if (! ok) return;
+        if (! node.left().has(FP)) {
+            while (ok) parse(node.left());
+            ok = true;
+            return;
+        }
         int saveIn = in;
         while (ok) {
             saveIn = in;
@@ -191,22 +792,53 @@ public class Evaluator implements Testable {
         if (! ok && in == saveIn) ok = true;
     }
 
-    // Parse [x]. If x contains an action or a marker, parse twice as x& then x.
-    // Otherwise parse once and decide whether to backtrack.
+    // Parse [x]. If [x] is equivalent to x, parse x. If x contains an action or
+    // a marker, and there is a tracer, parse twice as x& then x, as compiled
+    // code does. Otherwise parse once, with any output and markers kept
+    // provisionally, and on failure discard them along with the progress.
     private void parseSee(Node node) {
         if (switchTest) return;
-        if (node.has(AA) || node.has(EE)) {
+        if (node.redundant()) { parse(node.left()); return; }
+        boolean effects = node.has(AA) || node.has(EE);
+        if (effects && tracer != null) {
             parseHas(node);
             if (ok) parse(node.left());
-        } else {
+        }
+        else if (effects && lookahead == 0) parseBuffered(node);
+        else {
             int saveIn = in;
             parse(node.left());
-            if (! ok) {
-                boolean back = in != saveIn;
-                in = saveIn;
-                if (back && tracing) traceInput();
-            }
+            if (! ok) back(saveIn);
+        }
+    }
+
+    // Parse [x] once, where x contains actions or markers. The output acts as
+    // the log of actions, and is truncated on failure. Memo entries recorded
+    // within x are completed before their output is discarded. On failure,
+    // start is restored, because in x& x, actions in the lookahead x& don't
+    // move it.
+    private void parseBuffered(Node node) {
+        int saveIn = in, saveStart = start, outAt = output.length();
+        int saveMarked = marked, logAt = markLog.size(), saveReset = lastReset;
+        int freshAt = fresh.size();
+        TreeSet<String> saveFailures = null;
+        if (node.has(EE)) saveFailures = new TreeSet<>(failures);
+        parse(node.left());
+        if (ok) return;
+        back(saveIn);
+        start = saveStart;
+        if (fresh.size() > freshAt) {
+            String text = output.toString();
+            List<Memo> done = fresh.subList(freshAt, fresh.size());
+            for (Memo m : done) m.text = text;
+            done.clear();
         }
+        output.setLength(outAt);
+        if (saveFailures == null) return;
+        marked = saveMarked;
+        failures = saveFailures;
+        markLog.subList(logAt, markLog.size()).clear();
+        lastReset = saveReset;
     }
 
     // Parse x&
@@ -216,9 +848,7 @@ public class Evaluator implements Testable {
         lookahead++;
         parse(node.left());
         lookahead--;
-        boolean back = in != saveIn;
-        in = saveIn;
-        if (back && tracing) traceInput();
+        back(saveIn);
     }
 
     // Parse x!
@@ -228,25 +858,24 @@ public class Evaluator implements Testable {
         lookahead++;
         parse(node.left());
         lookahead--;
-        boolean back = in != saveIn;
-        in = saveIn;
-        if (in != saveIn && tracing) traceInput();
+        back(saveIn);
         ok = ! ok;
     }
 
     // Parse %t
     private void parseTag(Node node) {
         if (switchTest) return;
-        String tag = node.text().substring(1);
-        if (tag.startsWith("`")) tag = tag.substring(1, tag.length() - 1);
+        String tag = node.name();
         ok = input.startsWith(tag, in);
+        if (! ok) look(Math.min(in + tag.length(), input.length()) + 1);
         if (ok) {
             start = in;
             in += tag.length();
             while (input.startsWith(" ", in) || input.startsWith("\n", in)) {
                 in++;
             }
-            if (tracing) traceInput();
+            look(in + 1);
+            if (tracer != null) tracer.match(in);
         }
     }
 
@@ -266,16 +895,18 @@ public class Evaluator implements Testable {
     private void parseEot(Node node) {
         if (switchTest) return;
         ok = in == input.length();
+        look(in + 1);
     }
 
     private void parseChar(Node node) {
         if (switchTest) return;
+        look(in + 2);
         if (in >= input.length()) ok = false;
         else {
             int ch = input.codePointAt(in);
             ok = (ch == node.charCode());
             if (ok) in += Character.charCount(ch);
-            if (tracing) traceInput();
+            if (tracer != null) tracer.match(in);
         }
     }
 
@@ -285,33 +916,30 @@ public class Evaluator implements Testable {
         String text = node.rawText();
         int length = text.length();
         ok = true;
+        look(Math.min(in + length, input.length()) + 1);
         if (in + length > input.length()) ok = false;
         else for (int i=0; i<length; i++) {
             if (input.charAt(in+i) != text.charAt(i)) { ok = false; break; }
         }
         if (ok) {
             in += length;
-            if (tracing) traceInput();
+            if (tracer != null) tracer.match(in);
         }
     }
 
     // Parse 'abc'
     private void parseSet(Node node) {
         if (switchTest) return;
-        String text = node.rawText();
-        int length = text.length();
         ok = false;
-        if (in >= input.length()) { }
-        else for (int i=0; i<length; i++) {
-            if (input.charAt(in) != text.charAt(i)) continue;
-            if (Character.isHighSurrogate(text.charAt(i))) {
-                i++;
-                if (input.charAt(in+1) != text.charAt(i)) continue;
-                in++;
-            }
-            in++;
-            if (tracing) traceInput();
+        look(in + 2);
+        if (in >= input.length()) return;
+        int ch = input.codePointAt(in);
+        for (int p : node.points()) {
+            if (p != ch) continue;
+            in += Character.charCount(ch);
+            if (tracer != null) tracer.match(in);
             ok = true;
+            break;
         }
     }
 
@@ -321,33 +949,106 @@ public class Evaluator implements Testable {
         int low = node.low();
         int high = node.high();
         ok = false;
+        look(in + 2);
         if (in < input.length()) {
             int ch = input.codePointAt(in);
             ok = (ch >= low) && (ch <= high);
             if (ok) {
                 int n = Character.charCount(ch);
                 in += n;
-                if (tracing) traceInput();
+                if (tracer != null) tracer.match(in);
             }
         }
     }
 
-    // Parse <abc>
+    // Parse <abc>, comparing the rest of the input with the text in place, as
+    // far as the first difference, rather than copying the rest of the input.
     private void parseSplit(Node node) {
         if (switchTest) return;
         String text = node.rawText();
-        String rest = input.substring(in);
-        ok = rest.compareTo(text) <= 0;
+        int n = text.length(), k = 0;
+        while (k < n && in + k < input.length() &&
+            input.charAt(in + k) == text.charAt(k)) k++;
+        if (k == n) ok = in + k == input.length();
+        else if (in + k == input.length()) ok = true;
+        else ok = input.charAt(in + k) < text.charAt(k);
+        look(Math.min(in + n, input.length()) + 1);
+    }
+
+    // Parse "a" / "b" / ..., transformed into keys, by finding the longest key
+    // which the input starts with. The keys in a range of the sorted array
+    // match the input so far, and a key which has been matched completely is
+    // at the start of the range.
+    private void parseKeys(Node node) {
+        if (switchTest) return;
+        String[] keys = node.keys();
+        int lo = 0, hi = keys.length, k = 0, best = -1;
+        while (lo < hi) {
+            if (keys[lo].length() == k) { best = k; lo++; }
+            if (lo == hi || in + k >= input.length()) break;
+            char ch = input.charAt(in + k);
+            while (lo < hi && keys[lo].charAt(k) < ch) lo++;
+            int end = lo;
+            while (end < hi && keys[end].charAt(k) == ch) end++;
+            hi = end;
+            k++;
+        }
+        look(Math.min(in + k, input.length()) + 1);
+        ok = best >= 0;
+        if (ok) {
+            in += best;
+            if (tracer != null) tracer.match(in);
+        }
+    }
+
+    // Parse x* or x+, transformed into a span because x matches a single
+    // character, by scanning ahead. An ascii character is checked using a
+    // bitmap, and any other character by checking what x accepts.
+    private void parseSpan(Node node) {
+        if (switchTest) return;
+        long[] bits = node.span();
+        Node x = node.left().left();
+        int saveIn = in, n = input.length();
+        while (in < n) {
+            char ch = input.charAt(in);
+            if (ch < 128) {
+                if ((bits[ch >> 6] & (1L << ch)) == 0) break;
+                in++;
+            }
+            else {
+                int cp = input.codePointAt(in);
+                if (! x.accepts(cp)) break;
+                in += Character.charCount(cp);
+            }
+        }
+        look(in + 2);
+        ok = in > saveIn || node.left().op() == Any;
+        if (in > saveIn && tracer != null) tracer.match(in);
+    }
+
+    // Parse (x! .)*, transformed into an until node, by searching for x, or
+    // skipping to the end of the input if there is no x.
+    private void parseUntil(Node node) {
+        if (switchTest) return;
+        String x = node.left().rawText();
+        int end = input.indexOf(x, in);
+        if (end < 0) end = input.length();
+        look(Math.min(end + x.length(), input.length()) + 1);
+        ok = true;
+        if (end == in) return;
+        in = end;
+        if (tracer != null) tracer.match(in);
     }
 
     // Parse .
     private void parsePoint(Node node) {
         if (switchTest) return;
+        look(in + 2);
         if (in < input.length()) {
             ok = true;
             int ch = input.codePointAt(in);
             in += Character.charCount(ch);
-            if (tracing) traceInput();
+            if (tracer != null) tracer.match(in);
         }
         else ok = false;
     }
@@ -356,14 +1057,13 @@ public class Evaluator implements Testable {
     private void parseCat(Node node) {
         if (switchTest) return;
         ok = false;
-        Category cat = Category.valueOf(node.rawText());
+        look(in + 2);
         if (in < input.length()) {
             int ch = input.codePointAt(in);
-            Category c = Category.get(ch);
-            ok = c == cat;
+            ok = Category.index(ch) == node.get(SEQ);
             if (ok) {
                 in += Character.charCount(ch);
-                if (tracing) traceInput();
+                if (tracer != null) tracer.match(in);
             }
         }
     }
@@ -373,8 +1073,14 @@ public class Evaluator implements Testable {
         if (switchTest) return;
         ok = true;
         if (lookahead > 0) return;
-        if (marked != in) { marked = in; failures.clear(); }
-        failures.add(node.text().substring(1));
+        String name = node.name();
+        if (marked != in) {
+            marked = in;
+            failures.clear();
+            lastReset = markLog.size();
+        }
+        failures.add(name);
+        if (memo != null) markLog.add(name);
     }
 
     // Parse @
@@ -383,9 +1089,7 @@ public class Evaluator implements Testable {
         ok = true;
         int a = node.arity();
         if (lookahead > 0) return;
-        if (a > 0 && tracing) {
-            System.out.println("O" + (++outCount) + ": DROP " + a);
-        }
+        if (a > 0 && tracer != null) tracer.act(node, in, 0, ++outCount);
         start = in;
     }
 
@@ -394,17 +1098,234 @@ public class Evaluator implements Testable {
         if (switchTest) return;
         ok = true;
         if (lookahead > 0) return;
-        String s = node.text().substring(1);
-        while ('0' <= s.charAt(0) && s.charAt(0) <= '9') s = s.substring(1);
-        if (s.startsWith("`")) s = s.substring(1, s.length() - 1);
+        String s = node.name();
         if (charInput && in > start) s += " " + input.substring(start, in);
         s = escape(s);
-        s += "\n";
-        if (tracing) System.out.print("O" + (++outCount) + ": " + s);
-        output.append(s);
+        int at = output.length();
+        output.append(s).append('\n');
+        if (tracer != null) tracer.act(node, in, at, ++outCount);
         start = in;
     }
 
+    // Check that parsing by records gives the same result sequentially and in
+    // parallel, with errors in the right places.
+    private static void testRecords() {
+        Evaluator evaluator = new Evaluator();
+        evaluator.grammar(new Source(
+            "line = number ('+' @ number @2add)* '\\n' <>\n" +
+            "number = ('0..9')+ @number\n"));
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) sb.append(i == 57 ? "1+x\n" : "1+2\n");
+        Source input = new Source(sb.toString());
+        String one = evaluator.runRecords(input, "\n", 1);
+        String many = evaluator.runRecords(input, "\n", 4);
+        assert(one.equals(many));
+        assert(one.startsWith("number 1\nnumber 2\nadd\nnumber 1\n"));
+        assert(one.contains("Error on line 58:\n1+x\n  ^\n"));
+        assert(evaluator.runRecords(new Source(""), "\n", 4).equals(""));
+    }
+
+    // Check that waiting for a task passes on the exception from a failed
+    // task, and that an interrupted wait stops the pool and keeps the
+    // interrupt status.
+    private static void testAwait() {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        Error error = null;
+        Exception cause = new IllegalStateException();
+        try { await(pool, CompletableFuture.failedFuture(cause)); }
+        catch (Error e) { error = e; }
+        assert(error != null && error.getCause() == cause);
+        error = null;
+        Thread.currentThread().interrupt();
+        try { await(pool, new CompletableFuture<String>()); }
+        catch (Error e) { error = e; }
+        assert(error != null);
+        assert(error.getCause() instanceof InterruptedException);
+        assert(Thread.interrupted() && pool.isShutdown());
+    }
+
+    // Check that speculative parsing gives the same results as a sequential
+    // parse, including when items span lines so that guesses go wrong, and
+    // when there is an error.
+    private static void testSpeculation() {
+        Evaluator evaluator = new Evaluator();
+        evaluator.grammar(new Source(
+            "items = @nil (item @2list)* <>\n" +
+            "item = number ('+' @ gap number @2add)* '\\n' @ #item\n" +
+            "number = #digit ('0..9')+ @number\n" +
+            "gap = ('\\n')* @\n"));
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            sb.append(i % 7 == 0 ? "12+\n34\n" : "5+67+8\n");
+        }
+        Source good = new Source(sb.toString());
+        assert(evaluator.runSpeculative(good, 3).equals(evaluator.run(good)));
+        sb.insert(sb.length() * 2 / 3, "+");
+        Source bad = new Source(sb.toString());
+        String expect = evaluator.run(bad);
+        assert(expect.startsWith("Error"));
+        assert(evaluator.runSpeculative(bad, 3).equals(expect));
+    }
+
+    // Check that incremental parsing gives the same results as a full parse,
+    // after random edits which include errors and their repair, and that a
+    // small edit causes few rules to be parsed again.
+    private static void testIncremental() {
+        String g =
+            "items = @nil (item @2list)* <>\n" +
+            "item = number ('+' @ number @2add)* '\\n' @ #item\n" +
+            "number = #digit ('0..9')+ @number\n";
+        Evaluator full = new Evaluator(), inc = new Evaluator();
+        full.grammar(new Source(g));
+        inc.grammar(new Source(g));
+        inc.incremental(true);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; i++) sb.append(i + "+" + (i * 7) + "\n");
+        Random random = new Random(42);
+        String chars = "0123456789+\nx";
+        for (int i = 0; i < 100; i++) {
+            int p = random.nextInt(sb.length() + 1);
+            int kind = random.nextInt(3);
+            if (kind == 0 && p < sb.length()) sb.deleteCharAt(p);
+            else if (kind == 1 && p < sb.length()) {
+                sb.setCharAt(p, chars.charAt(random.nextInt(chars.length())));
+            }
+            else sb.insert(p, chars.charAt(random.nextInt(chars.length())));
+            Source s = new Source(sb.toString());
+            assert(inc.run(s).equals(full.run(s)));
+        }
+        sb.setLength(0);
+        for (int i = 0; i < 200; i++) sb.append("1+2\n");
+        inc.run(new Source(sb.toString()));
+        int before = inc.memo.size();
+        sb.insert(sb.length() / 2, "3+");
+        Source s = new Source(sb.toString());
+        assert(inc.run(s).equals(full.run(s)));
+        assert(inc.memo.size() == before + 2);
+        String[] gs = {
+            "s = @hello (t 'x' / t 'y') <>\nt = 'a'?\n",
+            "s = @hello (t 'x' / t 'y') <>\nt = 'a'? @tee\n",
+            "s = @hello ([t 'x'] / t 'y') <>\nt = 'a'? @tee\n"
+        };
+        for (String g2 : gs) {
+            full.grammar(new Source(g2));
+            inc.grammar(new Source(g2));
+            for (String in : new String[] { "y", "ay", "ax", "b" }) {
+                s = new Source(in);
+                assert(inc.run(s).equals(full.run(s)));
+            }
+        }
+    }
+
+    // Check that a parse which exceeds the limit on steps or backtracking is
+    // abandoned with an error naming the limit and rule, and that generous
+    // limits make no difference.
+    private static void testLimits() {
+        Evaluator evaluator = new Evaluator();
+        evaluator.grammar(new Source(
+            "s = (x 'b')& x 'b' @s <>\n" +
+            "x = ('a' 'a')*\n"));
+        Source input = new Source("a".repeat(200) + "b");
+        String out = evaluator.run(input);
+        evaluator.limits(100, 0, 0);
+        String s = evaluator.run(input);
+        assert(s.startsWith("Error on line 1: resource limit (steps) in x\n"));
+        evaluator.limits(0, 100, 0);
+        s = evaluator.run(input);
+        assert(s.equals(
+            "Error on line 1: resource limit (backtracking) in s\n" +
+            "a".repeat(200) + "b\n^\n"));
+        evaluator.limits(1000000, 1000, 60000);
+        assert(evaluator.run(input).equals(out));
+    }
+
+    // Check that a loop over a choice of single characters becomes a span,
+    // even though the choice is turned into keys first.
+    private static void testSpans() {
+        Evaluator evaluator = new Evaluator();
+        evaluator.grammar(new Source("x = (' ' / '-' / \"π\")* 'a' @x\n"));
+        boolean span = false;
+        for (Node n : evaluator.grammar.number()) span |= n.op() == Span;
+        assert(span);
+        assert(evaluator.run(new Source("- π -a")).equals("x - \\960 -a\n"));
+        assert(evaluator.run(new Source("-b")).startsWith("Error"));
+    }
+
+    // Check that [x] with actions and markers, parsed once, gives the same
+    // results as x& x, in fewer steps, including with memoizing. When [x]
+    // fails after an action, the start of the text for the next action is
+    // restored, since actions in x& don't move it.
+    private static void testBuffered() {
+        String g =
+            "s = (stmt '\\n' @1)* <>\n" +
+            "stmt = [id #equals '=' @1name] expr @2set / expr @1print\n" +
+            "expr = term ('+' term @2add)*\n" +
+            "term = id / number\n" +
+            "id = ('a..z')+ @id\n" +
+            "number = ('0..9')+ @number\n";
+        String x = "id #equals '=' @1name";
+        Evaluator once = new Evaluator(), twice = new Evaluator();
+        once.grammar(new Source(g));
+        twice.grammar(new Source(g.replace("[" + x + "]",
+            "(" + x + ")& " + x)));
+        String[] inputs = {
+            "a=1\nb+2\nc=d+3\n", "x+1\ny=\n", "a=b=\n", "12+?\n"
+        };
+        for (String in : inputs) {
+            Source s = new Source(in);
+            assert(once.run(s).equals(twice.run(s)));
+            assert(once.steps <= twice.steps);
+        }
+        assert(once.run(new Source("x+1\n")).startsWith("id x\n"));
+        Source s = new Source("a=1\nb+2\nc=d+3\n");
+        assert(once.run(s).equals(twice.run(s)));
+        assert(once.steps < twice.steps);
+        once.incremental(true);
+        assert(once.run(s).equals(twice.run(s)));
+        s = new Source("a=1\nb+2\nc=d+3\nx=x+\n");
+        assert(once.run(s).equals(twice.run(s)));
+    }
+
+    // Check that in recognising mode, an input is accepted with no output
+    // exactly when the full grammar accepts it, and that otherwise the error
+    // message is the same, after random edits, including by records, and that
+    // limits still apply. Check that the full grammar tree isn't built until
+    // an input is rejected.
+    private static void testRecognising() {
+        String g =
+            "items = @nil (item @2list)* <>\n" +
+            "item = number ('+' @ number @2add)* '\\n' @ #item\n" +
+            "number = #digit ('0..9')+ @number\n";
+        Evaluator full = new Evaluator(), rec = new Evaluator();
+        full.grammar(new Source(g));
+        rec.recognising(true);
+        rec.grammar(new Source(g));
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 50; i++) sb.append(i + "+" + (i * 7) + "\n");
+        assert(rec.run(new Source(sb.toString())).equals(""));
+        assert(rec.runRecords(new Source(sb.toString()), "\n", 2).equals(""));
+        assert(rec.grammar == null && rec.nodes == null);
+        assert(rec.run(new Source("1+\n")).startsWith("Error"));
+        assert(rec.grammar != null);
+        rec.grammar(new Source(g));
+        assert(rec.grammar == null);
+        Random random = new Random(42);
+        String chars = "0123456789+\nx";
+        for (int i = 0; i < 100; i++) {
+            int p = random.nextInt(sb.length() + 1);
+            sb.insert(p, chars.charAt(random.nextInt(chars.length())));
+            Source s = new Source(sb.toString());
+            String out = full.run(s);
+            if (out.startsWith("Error")) assert(rec.run(s).equals(out));
+            else assert(rec.run(s).equals(""));
+        }
+        Source s = new Source("1+2\n3+x\n4\n");
+        String out = rec.runRecords(s, "\n", 2);
+        assert(out.equals("Error on line 2: expecting digit\n3+x\n  ^\n"));
+        rec.limits(5, 0, 0);
+        assert(rec.run(new Source("1+2\n")).startsWith("Error"));
+    }
+
     // Convert control characters and Unicode to escapes.
     private String escape(String s) {
         StringBuilder sb = new StringBuilder();
@@ -423,23 +1344,4 @@ public class Evaluator implements Testable {
         }
         return sb.toString();
     }
-
-    // Print out the input position.
-    private void traceInput() {
-        int line = 1, start = 0, stop = input.length();
-        for (int i = 0; i < in; i++) {
-            if (input.charAt(i) != '\n') continue;
-            line++;
-            start = i + 1;
-        }
-        for (int i = in; i < input.length(); i++) {
-            if (input.charAt(i) != '\n') continue;
-            stop = i;
-            break;
-        }
-        System.out.print("I" + line + ": ");
-        System.out.print(input.substring(start, in));
-        System.out.print("|");
-        System.out.println(input.substring(in, stop));
-    }
 }
@@ -24,9 +24,11 @@ class Formats {
         CALL("s"), ID("s"), ESCAPE1("cd"), ESCAPE2("cd"), ESCAPE4("cd"),
         ACT("ds"), ACT0("s"), ACT1("s"), ACT2("s"), ACT3("s"), ACT4("s"),
         ACT5("s"), ACT6("s"), ACT7("s"), ACT8("s"), ACT9("s"),
-        GO(""), OK(""), ALT("l"), OPT("l"), SEE("l"),
+        GO(""), OK(""), ALT("l"), SWITCH("lnt"), CASE("sl"), LABEL("c"),
+        OPT("l"), SEE("l"),
         HAS("l"), NOT("l"), TAG("s"), EOT(""), STRING("s"), SET("s"),
-        SPLIT("s"), RANGE("cd"), POINT(""), CAT("s"), MARK("s"), DROP("d");
+        SPLIT("s"), KEYS("dl"), KEY("s"), UNTIL("s"), RANGE("cd"), POINT(""),
+        CAT("s"), MARK("s"), DROP("d");
         String allowed;
         Attribute(String a) { allowed = a; }
     }
@@ -157,6 +159,9 @@ class Formats {
         if (get(GO) == null) set(GO, call(f, "go"));
         if (get(OK) == null) set(OK, call(f, "ok"));
         if (get(ALT) == null) set(ALT, call(f, "alt", "%l"));
+        if (get(SWITCH) == null) set(SWITCH, "");
+        if (get(CASE) == null) set(CASE, "");
+        if (get(LABEL) == null) set(LABEL, "");
         if (get(OPT) == null) set(OPT, call(f, "opt", "%l"));
         if (get(SEE) == null) set(SEE, call(f, "see", "%l"));
         if (get(HAS) == null) set(HAS, call(f, "has", "%l"));
@@ -166,6 +171,9 @@ class Formats {
         if (get(STRING) == null) set(STRING, call(f, "string", "\"%s\""));
         if (get(SET) == null) set(SET, call(f, "set", "\"%s\""));
         if (get(SPLIT) == null) set(SPLIT, call(f, "split", "\"%s\""));
+        if (get(KEYS) == null) set(KEYS, call(f, "keys", "%d,%l"));
+        if (get(KEY) == null) set(KEY, "\"%s\"");
+        if (get(UNTIL) == null) set(UNTIL, call(f, "until", "\"%s\""));
         if (get(RANGE) == null) set(RANGE, call(f, "range", "'%c','%c'"));
         if (get(POINT) == null) set(POINT, call(f, "point"));
         if (get(CAT) == null) set(CAT, call(f, "cat", "%s"));
@@ -21,6 +21,8 @@ operands being converted to addresses. */
 
 class Generator implements Testable {
     private boolean switchTest, testing;
+    private int inline;
+    private boolean optimise;
     private Map<String,Integer> codes, actions, markers, tags, cats;
     private boolean hasCats;
     private StringBuilder text;
@@ -38,10 +40,58 @@ class Generator implements Testable {
             generator.encode(node);
         }
         generator.switchTest = false;
+        if (args.length == 0) testSaveless();
+        if (args.length == 0) testSpans();
         generator.testing = true;
         Test.run(generator, args);
     }
 
+    // Check that with optimisation, input positions are only saved where x
+    // can fail after progress, and a redundant [x] is encoded as x.
+    private static void testSaveless() {
+        Generator generator = new Generator();
+        generator.testing(true);
+        generator.optimise(true);
+        String s = generator.run(new Source(
+            "x = ('a' / 'b' 'c') ['d'] \"ef\"* ('f' 'g')+ @x\n"));
+        assert(s.contains(": OR 1\n") && ! s.contains(": LOOK\n"));
+        assert(s.contains(": MANY 1\n") && s.contains(": MANY\n"));
+        generator.optimise(false);
+        s = generator.run(new Source("x = ('a' / 'b') ['c']? @x\n"));
+        assert(s.contains(": OR\n") && s.contains(": ONE\n"));
+        assert(s.contains(": LOOK\n"));
+    }
+
+    // Check that with optimisation, a loop over a choice of single characters
+    // is encoded as a span, even though the choice is turned into keys first.
+    private static void testSpans() {
+        Generator generator = new Generator();
+        generator.testing(true);
+        generator.optimise(true);
+        String s = generator.run(new Source(
+            "x = (' ' / '-' / \"\\9\")* 'a' @x\n"));
+        assert(s.contains(": SPAN 17 ") && ! s.contains(": KEYS "));
+    }
+
+    // Switch off the printing of names, e.g. for testing or benchmarking.
+    void testing(boolean on) { testing = on; }
+
+    // Inline rules with bodies of up to the given number of nodes.
+    void inline(int size) { inline = size; }
+
+    // Switch on the transforms which use extra opcodes, i.e. KEYS, SPAN and
+    // UNTIL, and the elision of saved input positions and redundant [x]
+    // lookaheads, which uses operands on OR, ONE and MANY.
+    void optimise(boolean on) { optimise = on; }
+
+    public Testable copy() {
+        Generator generator = new Generator();
+        generator.testing = testing;
+        generator.inline = inline;
+        generator.optimise = optimise;
+        return generator;
+    }
+
     // Convert the grammar into bytecode in both binary and text forms.
     public String run(Source grammar) {
         Stacker stacker = new Stacker();
@@ -54,6 +104,13 @@ class Generator implements Testable {
         if (root.left().get(NEED) > 0) {
             return "Error: first rule can cause underflow\n";
         }
+        Transformer transformer = new Transformer();
+        transformer.inline(root, inline);
+        if (optimise) {
+            transformer.keys(root);
+            transformer.untils(root);
+            transformer.spans(root);
+        }
         bytes = new ByteArrayOutputStream();
         text = new StringBuilder();
         gather(root);
@@ -80,9 +137,6 @@ class Generator implements Testable {
         cats = new TreeMap<>();
         hasCats = false;
         for (Code c : Code.values()) codes.put(c.toString(), c.ordinal());
-        for (Category c : Category.values()) {
-            cats.put(c.toString(), c.ordinal());
-        }
         gatherNode(root);
         int i = 0;
         for (String k : actions.keySet()) actions.put(k, i++);
@@ -98,7 +152,10 @@ class Generator implements Testable {
             case Act: actions.put(node.rawText(), 0); break;
             case Mark: markers.put(node.rawText(), 0); break;
             case Tag: tags.put(node.rawText(), 0); break;
-            case Cat: hasCats = true;
+            case Cat:
+                hasCats = true;
+                cats.put(node.rawText(), node.get(SEQ));
+                break;
         }
         if (node.left() != null) gatherNode(node.left());
         if (node.right() != null) gatherNode(node.right());
@@ -127,8 +184,6 @@ class Generator implements Testable {
             case Act: node.set(SEQ, actions.get(node.rawText())); break;
             case Mark: node.set(SEQ, markers.get(node.rawText())); break;
             case Tag: node.set(SEQ, tags.get(node.rawText())); break;
-            case Cat:
-                node.set(SEQ, Category.valueOf(node.text()).ordinal()); break;
         }
         if (node.left() != null) setSequence(node.left());
         if (node.right() != null) setSequence(node.right());
@@ -169,6 +224,9 @@ class Generator implements Testable {
             case Range:     encodeRange(node);  break;
             case Split:     encodeSplit(node);  break;
             case Set:       encodeSet(node);    break;
+            case Keys:      encodeKeys(node);   break;
+            case Span:      encodeSpan(node);   break;
+            case Until:     encodeUntil(node);  break;
             case Fail:      encodeFail(node);   break;
             case Eot:       encodeEot(node);    break;
             default: assert false : "Unexpected node type " + node.op(); break;
@@ -199,13 +257,15 @@ class Generator implements Testable {
         else add(BACK, -offset);
     }
 
-    // {x / y}  =  EITHER(nx), {x}, OR, {y}
+    // {x / y}  =  EITHER(nx), {x}, OR, {y}   or   EITHER(nx), {x}, OR(1), {y}
+    // if x can't fail after progress, so no input position need be saved.
     private void encodeOr(Node node) {
         if (switchTest) return;
         int nx = node.left().get(LEN);
         add(EITHER, nx);
         encode(node.left());
-        add(OR);
+        if (saveless(node.left())) add(OR, 1);
+        else add(OR);
         encode(node.right());
     }
 
@@ -219,35 +279,48 @@ class Generator implements Testable {
         encode(node.right());
     }
 
-    // {x?}  =  MAYBE, ONE, {x}
+    // {x?}  =  MAYBE, ONE, {x}   or   MAYBE, ONE(1), {x}   as for x / y
     private void encodeOpt(Node node) {
         if (switchTest) return;
         add(MAYBE);
-        add(ONE);
+        if (saveless(node.left())) add(ONE, 1);
+        else add(ONE);
         encode(node.left());
     }
 
-    // {x*}  =  MAYBE, MANY, {x}
+    // {x*}  =  MAYBE, MANY, {x}   or   MAYBE, MANY(1), {x}   as for x / y
     private void encodeAny(Node node) {
         if (switchTest) return;
         add(MAYBE);
-        add(MANY);
+        if (saveless(node.left())) add(MANY, 1);
+        else add(MANY);
         encode(node.left());
     }
 
-    // {x+}  =  DO, AND, MAYBE, MANY, {x}
+    // {x+}  =  DO, AND, MAYBE, MANY, {x}   or with MANY(1)
     private void encodeSome(Node node) {
         if (switchTest) return;
         add(DO);
         add(AND);
         add(MAYBE);
-        add(MANY);
+        if (saveless(node.left())) add(MANY, 1);
+        else add(MANY);
         encode(node.left());
     }
 
-    // {[x]}  =  LOOK, SEE, {x}
+    // Check whether, with optimisation, x can be parsed without saving the
+    // input position, because it can't fail after progress.
+    private boolean saveless(Node x) {
+        return optimise && ! x.has(FP);
+    }
+
+    // {[x]}  =  LOOK, SEE, {x}   or   {x} with optimisation, if equivalent
     private void encodeSee(Node node) {
         if (switchTest) return;
+        if (optimise && node.redundant()) {
+            encode(node.left());
+            return;
+        }
         add(LOOK);
         add(SEE);
         encode(node.left());
@@ -312,7 +385,7 @@ class Generator implements Testable {
     // {"π"}  =  STRING(2), 207, 128
     private void encodeText(Node node) {
         if (switchTest) return;
-        byte[] bs = node.rawText().getBytes(UTF_8);
+        byte[] bs = node.utf8();
         add(STRING, bs.length, bs);
     }
 
@@ -325,7 +398,7 @@ class Generator implements Testable {
     // {"a"}  =  STRING(1), 97
     private void encodeChar(Node node) {
         if (switchTest) return;
-        byte[] bs = node.rawText().getBytes(UTF_8);
+        byte[] bs = node.utf8();
         add(STRING, bs.length, bs);
     }
 
@@ -333,7 +406,7 @@ class Generator implements Testable {
     // {<ab>}  =  LESS(2), 97, 98
     private void encodeSplit(Node node) {
         if (switchTest) return;
-        byte[] bs = node.rawText().getBytes(UTF_8);
+        byte[] bs = node.utf8();
         add(SPLIT, bs.length, bs);
     }
 
@@ -354,10 +427,86 @@ class Generator implements Testable {
     // {'αβ'}  =   SET(4), 206, 177, 206, 178
     private void encodeSet(Node node) {
         if (switchTest) return;
-        byte[] bs = node.rawText().getBytes(UTF_8);
+        byte[] bs = node.utf8();
         add(SET, bs.length, bs);
     }
 
+    // {"ab" / "c"}  =  KEYS(5), 2, 97, 98, 1, 99
+    // The keys are sorted by bytes, each preceded by its length. If a key is
+    // too long for that, the choice is encoded instead.
+    private void encodeKeys(Node node) {
+        if (switchTest) return;
+        String[] keys = node.keys();
+        byte[][] bss = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            bss[i] = keys[i].getBytes(UTF_8);
+            if (bss[i].length > 255) { encode(node.left()); return; }
+        }
+        Arrays.sort(bss, Arrays::compareUnsigned);
+        ByteArrayOutputStream table = new ByteArrayOutputStream();
+        for (byte[] bs : bss) {
+            table.write(bs.length);
+            table.write(bs, 0, bs.length);
+        }
+        add(KEYS, table.size(), table.toByteArray());
+    }
+
+    // {(' ' / '\t')*}  =  SPAN(17), 0, 2, 0, 0, 1, 0, ..., 0
+    // The operand is a bitmap of the ascii characters accepted, followed by a
+    // byte with bit 0 set if all other characters are accepted, and bit 1 set
+    // for x+. If some other characters are accepted and some not, the loop is
+    // encoded instead.
+    private void encodeSpan(Node node) {
+        if (switchTest) return;
+        Boolean all = beyond(node.left().left());
+        if (all == null) { encode(node.left()); return; }
+        long[] bits = node.span();
+        byte[] bs = new byte[17];
+        for (int i = 0; i < 16; i++) {
+            bs[i] = (byte) (bits[i / 8] >>> 8 * (i % 8));
+        }
+        bs[16] = (byte) ((all ? 1 : 0) | (node.left().op() == Some ? 2 : 0));
+        add(SPAN, bs.length, bs);
+    }
+
+    // {("*/"! .)*}  =  UNTIL(2), 42, 47
+    private void encodeUntil(Node node) {
+        if (switchTest) return;
+        byte[] bs = node.left().utf8();
+        add(UNTIL, bs.length, bs);
+    }
+
+    // Check whether a single character matcher accepts all non-ascii
+    // characters, or none, or return null if it accepts some.
+    private Boolean beyond(Node node) {
+        Boolean x, y;
+        switch (node.op()) {
+            case Char: return node.charCode() < 128 ? false : null;
+            case Text: return node.points()[0] < 128 ? false : null;
+            case Keys: return beyond(node.left());
+            case Set:
+                for (int p : node.points()) if (p >= 128) return null;
+                return false;
+            case Range: return node.high() < 128 ? false : null;
+            case Point: return true;
+            case Has: return beyond(node.left());
+            case Not:
+                x = beyond(node.left());
+                return x == null ? null : ! x;
+            case Or:
+                x = beyond(node.left());
+                y = beyond(node.right());
+                if (x == Boolean.TRUE || y == Boolean.TRUE) return true;
+                return x == null || y == null ? null : false;
+            case And:
+                x = beyond(node.left());
+                y = beyond(node.right());
+                if (x == Boolean.FALSE || y == Boolean.FALSE) return false;
+                return x == null || y == null ? null : true;
+            default: return null;
+        }
+    }
+
     // {''}  =   SET 0
     private void encodeFail(Node node) {
         if (switchTest) return;
@@ -0,0 +1,406 @@
+// Pecan 1.0 grammar images. Free and open source. See licence.txt.
+
+package pecan;
+
+import java.io.*;
+import java.lang.ref.*;
+import java.util.*;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static pecan.Op.*;
+import static pecan.Node.Count.*;
+
+/* A compact, read-only image of a stacked grammar, for very large grammars,
+e.g. machine-generated ones, where a tree of Node objects takes too much
+memory. The nodes are numbered depth first, as by Node.number, and each field
+is held in a parallel array indexed by node number:
+
+    ops      the op, as an ordinal
+    left     the number of the left subnode, or -1
+    right    the number of the right subnode, or of the rule referred to by an
+             id, or -1
+    flags    the flags, as a bit set
+    counts   the counts, as consecutive entries for each node
+    x, y     the operands: for a Text, Set, Split or Tag node, or the
+             delimiter of an Until node, the offset and length of its literal
+             in the pool; for Keys, the offset and length of its table of
+             keys, as for the KEYS bytecode op, or a length of zero if the
+             choice is to be used instead; for a Char, its code point;
+             for a Range, its low and high ends; for a Cat, its category
+             number; for an Act or Drop, its arity
+
+The literals are held in UTF-8 in a single byte array, with each distinct
+literal stored once. Node 0 is the list of rules, and node 1 is the first rule.
+
+The image has its own recognizer, which parses UTF-8 input directly from the
+arrays, without producing output. It gives the same success or failure as the
+Evaluator. The image keeps no reference to the tree it was made from, and the
+Evaluator uses it in recognising mode, so that while inputs are accepted, no
+tree need be kept. The image can be shared between threads. */
+
+class Image {
+    private final byte[] ops;
+    private final int[] left, right, flags, counts, x, y;
+    private final byte[] pool;
+    private static final Op[] opValues = Op.values();
+    private static final int COUNTS = Node.Count.values().length;
+
+    // Make an image from a stacked grammar, which mustn't be an error.
+    Image(Node grammar) {
+        assert(grammar.op() != Error);
+        Node[] nodes = grammar.number();
+        int n = nodes.length;
+        ops = new byte[n];
+        left = new int[n];
+        right = new int[n];
+        flags = new int[n];
+        counts = new int[n * COUNTS];
+        x = new int[n];
+        y = new int[n];
+        Map<String,Integer> offsets = new HashMap<>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int i = 0; i < n; i++) {
+            Node node = nodes[i];
+            ops[i] = (byte) node.op().ordinal();
+            left[i] = node.left() == null ? -1 : node.left().get(NUM);
+            Node r = node.left() == null ? node.ref() : node.right();
+            right[i] = r == null ? -1 : r.get(NUM);
+            flags[i] = node.flags();
+            for (Node.Count c : Node.Count.values()) {
+                counts[i * COUNTS + c.ordinal()] = node.get(c);
+            }
+            String literal = null;
+            byte[] bs = null;
+            switch (node.op()) {
+                case Text: case Set: case Split:
+                    literal = node.rawText();
+                    bs = node.utf8();
+                    break;
+                case Until:
+                    literal = node.left().rawText();
+                    bs = node.left().utf8();
+                    break;
+                case Tag:
+                    literal = node.name();
+                    bs = literal.getBytes(UTF_8);
+                    break;
+                case Char: x[i] = node.charCode(); break;
+                case Range: x[i] = node.low(); y[i] = node.high(); break;
+                case Cat: x[i] = node.get(SEQ); break;
+                case Act: case Drop: x[i] = node.arity(); break;
+                case Keys:
+                    x[i] = bytes.size();
+                    byte[] table = table(node);
+                    if (table != null) bytes.write(table, 0, table.length);
+                    y[i] = bytes.size() - x[i];
+                    break;
+            }
+            if (literal == null) continue;
+            Integer at = offsets.get(literal);
+            if (at == null) {
+                at = bytes.size();
+                offsets.put(literal, at);
+                bytes.write(bs, 0, bs.length);
+            }
+            x[i] = at;
+            y[i] = bs.length;
+        }
+        pool = bytes.toByteArray();
+    }
+
+    // Make the table for Keys, with the keys sorted by bytes, each preceded by
+    // its length, or return null if a key is too long.
+    private static byte[] table(Node node) {
+        String[] keys = node.keys();
+        byte[][] bss = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            bss[i] = keys[i].getBytes(UTF_8);
+            if (bss[i].length > 255) return null;
+        }
+        Arrays.sort(bss, Arrays::compareUnsigned);
+        ByteArrayOutputStream table = new ByteArrayOutputStream();
+        for (byte[] bs : bss) {
+            table.write(bs.length);
+            table.write(bs, 0, bs.length);
+        }
+        return table.toByteArray();
+    }
+
+    // Get the fields of a node.
+    int size() { return ops.length; }
+    Op op(int i) { return opValues[ops[i]]; }
+    int left(int i) { return left[i]; }
+    int right(int i) { return right[i]; }
+    boolean has(int i, Node.Flag f) {
+        return (flags[i] & (1 << f.ordinal())) != 0;
+    }
+    int get(int i, Node.Count c) { return counts[i * COUNTS + c.ordinal()]; }
+    String literal(int i) { return new String(pool, x[i], y[i], UTF_8); }
+
+    // Find the approximate number of bytes used by the image.
+    long bytes() {
+        return ops.length + 4L * (5 + COUNTS) * ops.length + pool.length;
+    }
+
+    // Recognize an input given as UTF-8 bytes. Return the end position if
+    // successful or, if not, minus one minus the position of failure.
+    int recognize(byte[] input) {
+        Matcher m = new Matcher(input);
+        m.parse(left[0]);
+        return m.ok ? m.in : -1 - m.in;
+    }
+
+    // The state of a parse of one input.
+    private class Matcher {
+        private final byte[] input;
+        private int in, len;
+        private boolean ok;
+
+        Matcher(byte[] input) { this.input = input; }
+
+        // Parse according to the node numbered i.
+        private void parse(int i) {
+            int saveIn = in;
+            switch (opValues[ops[i]]) {
+            case Error: case Temp: case List: case Empty: break;
+            case Rule: parse(right[i]); break;
+            case Id: parse(right[i]); break;
+            case Or:
+                parse(left[i]);
+                if (ok || in > saveIn) break;
+                parse(right[i]);
+                break;
+            case And:
+                parse(left[i]);
+                if (ok) parse(right[i]);
+                break;
+            case Opt:
+                parse(left[i]);
+                if (! ok && in == saveIn) ok = true;
+                break;
+            case Any: case Some:
+                parse(left[i]);
+                if (! ok) {
+                    if (in == saveIn && ops[i] == Any.ordinal()) ok = true;
+                    break;
+                }
+                while (ok) {
+                    saveIn = in;
+                    parse(left[i]);
+                }
+                if (in == saveIn) ok = true;
+                break;
+            case See:
+                parse(left[i]);
+                if (! ok) in = saveIn;
+                break;
+            case Has: parse(left[i]); in = saveIn; break;
+            case Not: parse(left[i]); in = saveIn; ok = ! ok; break;
+            case Tag: matchTag(i); break;
+            case Success: case Mark: case Drop: case Act: ok = true; break;
+            case Fail: ok = false; break;
+            case Eot: ok = in == input.length; break;
+            case Char: ok = in < input.length && next() == x[i]; step(); break;
+            case Text: matchText(i); break;
+            case Set: matchSet(i); break;
+            case Range:
+                ok = false;
+                if (in < input.length) {
+                    int ch = next();
+                    ok = x[i] <= ch && ch <= y[i];
+                    step();
+                }
+                break;
+            case Split: matchSplit(i); break;
+            case Keys:
+                if (y[i] == 0) parse(left[i]);
+                else matchKeys(i);
+                break;
+            case Span: parse(left[i]); break;
+            case Until: matchUntil(i); break;
+            case Point: ok = in < input.length; if (ok) next(); step(); break;
+            case Cat:
+                ok = in < input.length && Category.index(next()) == x[i];
+                step();
+                break;
+            default: assert false : "Unexpected op " + op(i); break;
+            }
+        }
+
+        // Decode the next character, setting len to its length in bytes.
+        private int next() {
+            int b = input[in] & 0xFF;
+            if (b < 0x80 || in + 1 >= input.length) { len = 1; return b; }
+            int b1 = input[in + 1] & 0x3F;
+            if (b < 0xE0) { len = 2; return ((b & 0x1F) << 6) | b1; }
+            if (in + 2 >= input.length) { len = 1; return b; }
+            int b2 = input[in + 2] & 0x3F;
+            if (b < 0xF0) {
+                len = 3;
+                return ((b & 0x0F) << 12) | (b1 << 6) | b2;
+            }
+            if (in + 3 >= input.length) { len = 1; return b; }
+            len = 4;
+            return ((b & 0x07) << 18) | (b1 << 12) | (b2 << 6) |
+                (input[in + 3] & 0x3F);
+        }
+
+        // Move past the character just decoded, after a successful match.
+        private void step() { if (ok) in += len; }
+
+        private void matchText(int i) {
+            int n = y[i];
+            ok = in + n <= input.length;
+            for (int k = 0; ok && k < n; k++) {
+                ok = input[in + k] == pool[x[i] + k];
+            }
+            if (ok) in += n;
+        }
+
+        private void matchSet(int i) {
+            ok = false;
+            if (in >= input.length) return;
+            int ch = next(), chLen = len;
+            for (int k = x[i]; k < x[i] + y[i]; ) {
+                int b = pool[k] & 0xFF;
+                int n = b < 0x80 ? 1 : b < 0xE0 ? 2 : b < 0xF0 ? 3 : 4;
+                if (n == chLen && Arrays.equals(
+                    pool, k, k + n, input, in, in + n)) {
+                    ok = true;
+                    in += n;
+                    return;
+                }
+                k += n;
+            }
+        }
+
+        // Compare the rest of the input with the literal, by UTF-16 units as
+        // in the Evaluator.
+        private void matchSplit(int i) {
+            int n = y[i], k = 0;
+            while (k < n && in + k < input.length &&
+                input[in + k] == pool[x[i] + k]) k++;
+            if (k == n) ok = in + k == input.length;
+            else if (in + k == input.length) ok = true;
+            else ok = unit(input[in + k]) < unit(pool[x[i] + k]);
+        }
+
+        // Rank a byte where two UTF-8 texts first differ, in the order of the
+        // UTF-16 units. That is the order of the unsigned bytes, except that
+        // characters from U+E000, which start with EE or EF, come after the
+        // supplementary characters, which are stored as surrogates.
+        private int unit(byte b) {
+            int u = b & 0xFF;
+            return u == 0xEE || u == 0xEF ? u + 0x10 : u;
+        }
+
+        // Find the longest key which the input starts with. The keys in a range
+        // of the table match the input so far, and a key which has been
+        // matched completely is at the start of the range.
+        private void matchKeys(int i) {
+            int lo = x[i], hi = x[i] + y[i], k = 0, best = -1;
+            while (lo < hi) {
+                if ((pool[lo] & 0xFF) == k) { best = k; lo += 1 + k; }
+                if (lo == hi || in + k >= input.length) break;
+                int b = input[in + k] & 0xFF;
+                while (lo < hi && (pool[lo + 1 + k] & 0xFF) < b) {
+                    lo += 1 + (pool[lo] & 0xFF);
+                }
+                int end = lo;
+                while (end < hi && (pool[end + 1 + k] & 0xFF) == b) {
+                    end += 1 + (pool[end] & 0xFF);
+                }
+                hi = end;
+                k++;
+            }
+            ok = best >= 0;
+            if (ok) in += best;
+        }
+
+        // Skip to the next occurrence of the literal, or to the end.
+        private void matchUntil(int i) {
+            int n = y[i];
+            while (in < input.length) {
+                if (in + n <= input.length && Arrays.equals(
+                    input, in, in + n, pool, x[i], x[i] + n)) break;
+                in++;
+            }
+            ok = true;
+        }
+
+        private void matchTag(int i) {
+            matchText(i);
+            if (! ok) return;
+            while (in < input.length &&
+                (input[in] == ' ' || input[in] == '\n')) in++;
+        }
+    }
+
+    // Check that a split orders a supplementary character before U+E000, as
+    // the Evaluator does.
+    private static void testSplit() {
+        Source g = new Source("s = <\\57344> . <>\n");
+        Node grammar = new Stacker().run(g);
+        Image image = new Image(grammar);
+        Evaluator evaluator = new Evaluator();
+        evaluator.grammar(g);
+        String[] inputs = { "\uD800\uDC00", "\uE000", "\uE001", "z" };
+        for (String s : inputs) {
+            Source input = new Source(s);
+            boolean expect = ! evaluator.run(input).startsWith("Error");
+            byte[] bs = s.getBytes(UTF_8);
+            assert((image.recognize(bs) >= 0) == expect) : s;
+        }
+        assert(image.recognize("\uD800\uDC00".getBytes(UTF_8)) >= 0);
+        assert(image.recognize("\uE001".getBytes(UTF_8)) < 0);
+    }
+
+    // Check that an image doesn't keep the tree it was made from alive.
+    private static void testDropped() {
+        Node grammar = new Stacker().run(new Source("s = 'a'+ <>\n"));
+        Image image = new Image(grammar);
+        WeakReference<Node> ref = new WeakReference<>(grammar);
+        grammar = null;
+        for (int i = 0; i < 10 && ref.get() != null; i++) System.gc();
+        assert(ref.get() == null);
+        assert(image.recognize("aaa".getBytes(UTF_8)) >= 0);
+    }
+
+    // Check that an image recognizes the same inputs as the Evaluator, for
+    // random valid inputs and near misses of some shipped grammars, and that
+    // it is much smaller than the tree.
+    public static void main(String[] args) {
+        String[] files = {
+            "docs/development/sum.txt", "docs/compilation/sum.txt",
+            "docs/tokens/scan.txt", "docs/tokens/sum.txt", "docs/pecan.txt",
+            "docs/c/c-scan.txt",
+        };
+        for (String file : files) {
+            Source source = new Source(new File(file));
+            int n = source.indexOf("\n==========");
+            Source g = n < 0 ? source : source.sub(0, n + 1);
+            Node grammar = new Stacker().run(g);
+            assert(grammar.op() != Error) : file;
+            new Transformer().keys(grammar);
+            Image image = new Image(grammar);
+            assert(image.op(0) == List && image.op(1) == Rule);
+            assert(image.bytes() < 64L * image.size() + 2 * g.length());
+            Evaluator evaluator = new Evaluator();
+            evaluator.grammar(g);
+            Sampler sampler = new Sampler(1);
+            sampler.size(200);
+            sampler.grammar(g);
+            for (int i = 0; i < 20; i++) {
+                String s = i % 2 == 0 ? sampler.valid() : sampler.nearMiss();
+                if (s == null) continue;
+                Source input = new Source(s);
+                boolean expect = ! evaluator.run(input).startsWith("Error");
+                byte[] bs = input.rawText().getBytes(UTF_8);
+                boolean ok = image.recognize(bs) >= 0;
+                assert(ok == expect) : file + "\n" + s;
+            }
+        }
+        testSplit();
+        testDropped();
+        System.out.println("Image class OK");
+    }
+}
@@ -2,6 +2,7 @@
 
 package pecan;
 import java.util.*;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static pecan.Op.*;
 
 /* A Node represents any parsing expression, together with source text and
@@ -10,7 +11,13 @@ annotation information.
 A node has an op, up to two subnodes, a source string, some flags, some counts,
 and a temporary note also used to store a print format. If the left subnode is
 null, the right subnode represents a cross-reference link instead of a child.
-For more information about annotations, see the classes which handle them. */
+For more information about annotations, see the classes which handle them.
+
+For a literal node, i.e. a text, set, split, character, range, category, tag,
+marker, action or id, the decoded forms of the text are cached, so that engines
+don't decode the source on every visit. The caches are filled in for a whole
+tree after binding, before the tree is shared between threads, and are
+discarded if the op or source changes. */
 
 class Node {
     private Op op;
@@ -19,10 +26,15 @@ class Node {
     private int flags;
     private int[] counts = new int[Count.values().length];
     private String note = "";
+    private String text, raw, name;
+    private int[] points;
+    private byte[] utf8;
+    private String[] keys;
+    private long[] span;
 
     // Flag and count constants.
     public static enum Flag { TI, SN, FN, SP, FP, WF, AA, EE, AB; }
-    public static enum Count { NET, NEED, PC, LEN, SEQ; }
+    public static enum Count { NET, NEED, PC, LEN, SEQ, NUM; }
 
     // Construct a node with any number of subnodes and a source,
     Node(Op o, Node x, Node y, Source s) { op=o; left=x; right=y; source=s; }
@@ -39,12 +51,14 @@ class Node {
     Node(Op op, String b, Node x, String a) { this(op, b, x, "", null, a); }
     Node(Op op, String a) { this(op, a, null, "", null, ""); }
 
-    // Make a deep copy of a node (during transforms).
+    // Make a deep copy of a node (during transforms). A cross reference is
+    // shared rather than copied, so recursive rules don't cause a loop.
     Node deepCopy() {
         Node copy = new Node(op, left, right, source);
         if (left != null) copy.left = left.deepCopy();
-        if (right != null) copy.right = right.deepCopy();
+        if (left != null && right != null) copy.right = right.deepCopy();
         copy.flags = flags;
+        copy.counts = counts.clone();
         return copy;
     }
 
@@ -54,20 +68,25 @@ class Node {
     Node right() { return left == null ? null : right; }
     Node ref() { return left != null ? null : right; }
     Source source() { return source; }
-    String text() { return source.text(); }
+    String text() {
+        if (text != null) return text;
+        String s = source.text();
+        if (literal()) text = s;
+        return s;
+    }
     int flags() { return flags; }
     String note() { return note; }
     String format() { return note; }
 
     // Set the fields.
-    void op(Op o) { op = o; }
+    void op(Op o) { op = o; uncache(); }
     void left(Node x) {
         assert((right == null) || ((x == null) == (left == null)));
         left = x;
     }
     void right(Node y) { assert(left != null); right = y; }
     void ref(Node r) { assert(left == null); right = r; }
-    void source(Source s) { source = s; }
+    void source(Source s) { source = s; uncache(); }
     void flags(int fs) { flags = fs; }
     void note(String s) { note = s; }
     void format(String s) { note = s; }
@@ -82,6 +101,122 @@ class Node {
     // Get the raw text of a node, i.e. the text without quotes, escapes etc.
     // Adapt identifiers and literals, as for compiling, to detect name clashes.
     String rawText() {
+        if (raw != null) return raw;
+        String s = decode();
+        if (literal()) raw = s;
+        return s;
+    }
+
+    // Get the raw text of a literal as an array of code points.
+    int[] points() {
+        if (points == null) points = rawText().codePoints().toArray();
+        return points;
+    }
+
+    // Get the raw text of a literal in UTF-8.
+    byte[] utf8() {
+        if (utf8 == null) utf8 = rawText().getBytes(UTF_8);
+        return utf8;
+    }
+
+    // For a tag, marker or action, get the name as used by the engines, i.e.
+    // without the prefix character or arity. The backquotes of a tag or action
+    // are removed, but those of a marker are kept, for error messages.
+    String name() {
+        if (name != null) return name;
+        String s = text().substring(1);
+        if (op == Act) {
+            while (s.length() > 0 && '0' <= s.charAt(0) && s.charAt(0) <= '9') {
+                s = s.substring(1);
+            }
+        }
+        if (op != Mark && s.startsWith("`")) s = s.substring(1, s.length() - 1);
+        name = s.intern();
+        return name;
+    }
+
+    // For a Keys node, get the raw texts of the alternatives, in ascending
+    // order, as for a binary search.
+    String[] keys() {
+        if (keys != null) return keys;
+        List<String> list = new ArrayList<>();
+        Node n = left;
+        for (; n.op == Or; n = n.right) list.add(n.left.rawText());
+        list.add(n.rawText());
+        keys = list.toArray(new String[0]);
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    // For a Span node, get a bitmap of the ascii characters accepted by the
+    // body of the loop, as two longs.
+    long[] span() {
+        if (span != null) return span;
+        long[] bits = new long[2];
+        for (int ch = 0; ch < 128; ch++) {
+            if (left.left.accepts(ch)) bits[ch >> 6] |= 1L << ch;
+        }
+        span = bits;
+        return span;
+    }
+
+    // For a matcher of a single character, made of characters, one-character
+    // texts, sets, ranges, categories, points, choices or keys, and lookaheads
+    // before a matcher, check whether it accepts the character ch.
+    boolean accepts(int ch) {
+        switch (op) {
+            case Char: return ch == charCode();
+            case Text: return points().length == 1 && points()[0] == ch;
+            case Set:
+                for (int p : points()) if (p == ch) return true;
+                return false;
+            case Range: return low() <= ch && ch <= high();
+            case Cat: return Category.index(ch) == get(Count.SEQ);
+            case Point: return true;
+            case Or: return left.accepts(ch) || right.accepts(ch);
+            case Keys: return left.accepts(ch);
+            case And: return left.accepts(ch) && right.accepts(ch);
+            case Has: return left.accepts(ch);
+            case Not: return ! left.accepts(ch);
+            default: return false;
+        }
+    }
+
+    // Check whether a node is a literal, with cached text.
+    private boolean literal() {
+        switch (op) {
+            case Text: case Set: case Split: case Char: case Range: case Cat:
+            case Tag: case Mark: case Act: case Id: return true;
+            default: return false;
+        }
+    }
+
+    // Fill in the caches for the literals in a tree, so that they are not
+    // filled in lazily by several threads at once.
+    void cache() {
+        if (literal()) {
+            text();
+            points();
+            utf8();
+            if (op == Tag || op == Mark || op == Act) name();
+        }
+        if (op == Keys) keys();
+        if (op == Span) span();
+        if (left != null) left.cache();
+        if (left != null && right != null) right.cache();
+    }
+
+    // Discard the caches.
+    private void uncache() {
+        text = raw = name = null;
+        points = null;
+        utf8 = null;
+        keys = null;
+        span = null;
+    }
+
+    // Decode the raw text.
+    private String decode() {
         String s = source.rawText();
         char ch = s.charAt(0);
         if (ch == '#' || ch == '%') s = s.substring(1);
@@ -136,6 +271,31 @@ class Node {
         return Integer.parseInt(s.substring(1, n));
     }
 
+    // For a lookahead [x], check whether it is equivalent to x, because x
+    // can't fail after progress, or record a marker, or perform an action
+    // before progressing.
+    boolean redundant() {
+        assert(op == See);
+        if (left.has(Flag.FP) || left.has(Flag.EE)) return false;
+        return ! left.has(Flag.AB);
+    }
+
+    // Number the nodes of a tree depth first, without following cross
+    // references, setting their NUM counts. Return the nodes as an array
+    // indexed by number.
+    Node[] number() {
+        List<Node> list = new ArrayList<>();
+        number(list);
+        return list.toArray(new Node[list.size()]);
+    }
+
+    private void number(List<Node> list) {
+        set(Count.NUM, list.size());
+        list.add(this);
+        if (left != null) left.number(list);
+        if (left != null && right != null) right.number(list);
+    }
+
     // Clear the notes.
     private void clear() {
         note("");
@@ -232,47 +392,49 @@ class Node {
     }
 
     // For each visible ascii character, define how it is translated when it
-    // appears in a literal name.
+    // appears in a literal name. Fill in the map before publishing it, in case
+    // of tests running in parallel.
     private static void fillCharMap() {
-        charMap  = new String[128];
-        for (char ch = 'a'; ch <= 'z'; ch++) charMap[ch] = "" + ch;
-        for (char ch = 'A'; ch <= 'Z'; ch++) charMap[ch] = "" + ch;
-        for (char ch = '0'; ch <= '9'; ch++) charMap[ch] = "" + ch;
+        String[] map = new String[128];
+        for (char ch = 'a'; ch <= 'z'; ch++) map[ch] = "" + ch;
+        for (char ch = 'A'; ch <= 'Z'; ch++) map[ch] = "" + ch;
+        for (char ch = '0'; ch <= '9'; ch++) map[ch] = "" + ch;
         for (char ch = ' '; ch < '~'; ch++) switch (ch) {
-            case ' ': charMap[ch] = "Sp"; break;
-            case '!': charMap[ch] = "Em"; break;
-            case '"': charMap[ch] = "Dq"; break;
-            case '#': charMap[ch] = "Hs"; break;
-            case '$': charMap[ch] = "Dl"; break;
-            case '%': charMap[ch] = "Pc"; break;
-            case '&': charMap[ch] = "Am"; break;
-            case '\'': charMap[ch] = "Sq"; break;
-            case '(': charMap[ch] = "Ob"; break;
-            case ')': charMap[ch] = "Cb"; break;
-            case '*': charMap[ch] = "St"; break;
-            case '+': charMap[ch] = "Pl"; break;
-            case ',': charMap[ch] = "Cm"; break;
-            case '-': charMap[ch] = "Mi"; break;
-            case '.': charMap[ch] = "Dt"; break;
-            case '/': charMap[ch] = "Sl"; break;
-            case ':': charMap[ch] = "Cl"; break;
-            case ';': charMap[ch] = "Sc"; break;
-            case '<': charMap[ch] = "Lt"; break;
-            case '=': charMap[ch] = "Eq"; break;
-            case '>': charMap[ch] = "Gt"; break;
-            case '?': charMap[ch] = "Qm"; break;
-            case '@': charMap[ch] = "At"; break;
-            case '[': charMap[ch] = "Os"; break;
-            case '\\': charMap[ch] = "Bs"; break;
-            case ']': charMap[ch] = "Cs"; break;
-            case '^': charMap[ch] = "Ht"; break;
-            case '_': charMap[ch] = "Us"; break;
-            case '`': charMap[ch] = "Bq"; break;
-            case '{': charMap[ch] = "Oc"; break;
-            case '|': charMap[ch] = "Vb"; break;
-            case '}': charMap[ch] = "Cc"; break;
-            case '~': charMap[ch] = "Ti"; break;
+            case ' ': map[ch] = "Sp"; break;
+            case '!': map[ch] = "Em"; break;
+            case '"': map[ch] = "Dq"; break;
+            case '#': map[ch] = "Hs"; break;
+            case '$': map[ch] = "Dl"; break;
+            case '%': map[ch] = "Pc"; break;
+            case '&': map[ch] = "Am"; break;
+            case '\'': map[ch] = "Sq"; break;
+            case '(': map[ch] = "Ob"; break;
+            case ')': map[ch] = "Cb"; break;
+            case '*': map[ch] = "St"; break;
+            case '+': map[ch] = "Pl"; break;
+            case ',': map[ch] = "Cm"; break;
+            case '-': map[ch] = "Mi"; break;
+            case '.': map[ch] = "Dt"; break;
+            case '/': map[ch] = "Sl"; break;
+            case ':': map[ch] = "Cl"; break;
+            case ';': map[ch] = "Sc"; break;
+            case '<': map[ch] = "Lt"; break;
+            case '=': map[ch] = "Eq"; break;
+            case '>': map[ch] = "Gt"; break;
+            case '?': map[ch] = "Qm"; break;
+            case '@': map[ch] = "At"; break;
+            case '[': map[ch] = "Os"; break;
+            case '\\': map[ch] = "Bs"; break;
+            case ']': map[ch] = "Cs"; break;
+            case '^': map[ch] = "Ht"; break;
+            case '_': map[ch] = "Us"; break;
+            case '`': map[ch] = "Bq"; break;
+            case '{': map[ch] = "Oc"; break;
+            case '|': map[ch] = "Vb"; break;
+            case '}': map[ch] = "Cc"; break;
+            case '~': map[ch] = "Ti"; break;
         }
+        charMap = map;
     }
 
     public static void main(String[] args) {
@@ -297,6 +459,22 @@ class Node {
         assert(n.rawText().equals("oneTwo"));
         n = new Node(Id, new Source("`<=`"));
         assert(n.rawText().equals("LtEq"));
+        n = new Node(Set, new Source("'aπ'"));
+        assert(n.rawText() == n.rawText() && n.points().length == 2);
+        assert(n.utf8().length == 3);
+        n.source(new Source("'b'"));
+        assert(n.points()[0] == 'b');
+        n = new Node(Act, new Source("@2`+`"));
+        assert(n.name().equals("+") && n.name() == "+");
+        n = new Node(Mark, new Source("#`+`"));
+        assert(n.name().equals("`+`"));
+        Node id = new Node(Id, new Source("x"));
+        Node a = new Node(Char, new Source("'a'"));
+        n = new Node(And, a, id, new Source("'a' x"));
+        id.ref(n);
+        Node copy = n.deepCopy();
+        assert(copy.left() != a && copy.right() != id);
+        assert(copy.right().ref() == n);
         System.out.println("Node class OK");
     }
 }
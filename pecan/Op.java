@@ -24,6 +24,9 @@ public enum Op {
     Text,      // Character sequence, "abc"
     Set,       // Choice of characters, 'abc'
     Split,     // Lookahead for text less than or equal to string, <...>
+    Keys,      // Choice of texts, "a" / "b" / ..., made by a transform
+    Span,      // Loop over a single character matcher, x*, made by a transform
+    Until,     // Skip to a delimiter, ("*/"! .)*, made by a transform
     Char,      // Single character, "a" or 'a'
     Point,     // Any Unicode character (code point)
     Success,   // Always succeed, ""
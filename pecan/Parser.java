@@ -40,6 +40,8 @@ class Parser implements Testable {
         Test.run(new Parser(), args);
     }
 
+    public Testable copy() { return new Parser(); }
+
     // Parse the grammar, returning a node (possibly an error node).
     public Node run(Source s) {
         input = s;
@@ -1,6 +1,7 @@
 // Pecan 1.0 pretty printing. Free and open source. See licence.txt.
 
 package pecan;
+import java.io.*;
 import java.util.*;
 import static pecan.Node.Count.*;
 
@@ -20,12 +21,15 @@ specifiers in node formats can contain:
     %s    literal name of node
     %c
 
- */
+The text can be sent to a writer in pieces, e.g. one rule at a time, so that
+a huge program is never held in memory all at once. Measurement only needs the
+text of the node being printed. */
 
 class Pretty {
     private StringBuilder output = new StringBuilder();
     private int cursor, indent, tab = 2, margin = 80;
     private String escape1, escape2, escape4;
+    private Writer writer;
 
     // Set the tab size from a string of spaces.
     void tab(String s) {
@@ -39,6 +43,19 @@ class Pretty {
         escape4 = s4;
     }
 
+    // Send the printed text to a writer, when flushed, instead of keeping it.
+    void writer(Writer w) { writer = w; }
+
+    // Pass the text printed so far to the writer, if there is one. This should
+    // be done at the start of a line, as trailing spaces can't be removed once
+    // the text has been passed on.
+    void flush() {
+        if (writer == null) return;
+        try { writer.write(output.toString()); }
+        catch (IOException e) { throw new Error(e); }
+        output.setLength(0);
+    }
+
     // Ask for the text that's been printed, and reset.
     String text() {
         String s = output.toString();
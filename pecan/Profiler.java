@@ -0,0 +1,165 @@
+// Pecan 1.0 profiler. Free and open source. See licence.txt.
+
+package pecan;
+
+import java.util.*;
+import static pecan.Op.*;
+import static pecan.Node.Count.*;
+
+/* Collect statistics about the rules of a grammar during a parse, to find out
+which rules dominate the parsing time, and which would benefit from a [x]
+rewrite, or from memoization. For each rule, the profiler records:
+
+    calls    the number of times the rule is invoked
+    ok       the number of successes
+    fail     the number of failures without progress
+    fail+    the number of failures after progress, i.e. errors
+    chars    the number of input characters consumed by successes
+    again    the number of those characters which had already been examined,
+             i.e. which are being re-consumed after backtracking
+    self     the time spent in the rule, excluding calls of other rules
+    total    the time spent in the rule, including calls of other rules
+
+The time for a recursive rule is only counted once, at the outermost call.
+Rules are identified by their NUM counts, as for the Tracer. Every character
+examined and then abandoned when backtracking is counted, so the total number
+of characters examined, divided by the length of the input, gives an overall
+amplification factor, which is 1.0 for a parser which never backtracks.
+
+The report is a table sorted by cost, i.e. by self time. A profiler belongs to
+one engine, and so to one thread. */
+
+class Profiler {
+    private Node[] nodes;
+    private int[] calls, oks, fails, errors, active;
+    private long[] chars, again, self, total;
+    private int depth, high;
+    private long examined;
+    private int[] stackIn = new int[64], stackHigh = new int[64];
+    private long[] stackTime = new long[64], stackChild = new long[64];
+
+    // Prepare for a parse, with the nodes of the grammar as numbered by
+    // Node.number.
+    void start(Node[] nodes) {
+        this.nodes = nodes;
+        int n = nodes.length;
+        calls = new int[n];
+        oks = new int[n];
+        fails = new int[n];
+        errors = new int[n];
+        active = new int[n];
+        chars = new long[n];
+        again = new long[n];
+        self = new long[n];
+        total = new long[n];
+        depth = high = 0;
+        examined = 0;
+    }
+
+    // Record the start of a rule.
+    void enter(Node rule, int in) {
+        if (depth == stackIn.length) grow();
+        calls[rule.get(NUM)]++;
+        active[rule.get(NUM)]++;
+        stackIn[depth] = in;
+        stackHigh[depth] = Math.max(high, in);
+        stackChild[depth] = 0;
+        stackTime[depth++] = System.nanoTime();
+    }
+
+    // Record the end of a rule.
+    void exit(Node rule, int in, boolean ok) {
+        int n = rule.get(NUM);
+        long time = System.nanoTime() - stackTime[--depth];
+        int from = stackIn[depth];
+        self[n] += time - stackChild[depth];
+        if (--active[n] == 0) total[n] += time;
+        if (depth > 0) stackChild[depth - 1] += time;
+        if (ok) {
+            oks[n]++;
+            chars[n] += in - from;
+            int seen = Math.min(in, stackHigh[depth]);
+            if (seen > from) again[n] += seen - from;
+        }
+        else if (in > from) errors[n]++;
+        else fails[n]++;
+    }
+
+    // Record backtracking from one input position to an earlier one.
+    void back(int from, int to) {
+        examined += from - to;
+        if (from > high) high = from;
+    }
+
+    // Make the stack bigger, for deeply nested rules.
+    private void grow() {
+        int n = 2 * stackIn.length;
+        stackIn = Arrays.copyOf(stackIn, n);
+        stackHigh = Arrays.copyOf(stackHigh, n);
+        stackTime = Arrays.copyOf(stackTime, n);
+        stackChild = Arrays.copyOf(stackChild, n);
+    }
+
+    // Find the total number of characters examined, given the final position.
+    long examined(int in) { return examined + in; }
+
+    // Produce the report, given the final position and the input length.
+    String report(int in, int length) {
+        long seen = examined(in);
+        double factor = length == 0 ? 1.0 : (double) seen / length;
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(
+            "Profile: %d chars examined, input %d chars, amplification %.2f\n",
+            seen, length, factor));
+        sb.append(String.format("%-16s %8s %8s %8s %8s %8s %8s %9s %9s\n",
+            "rule", "calls", "ok", "fail", "fail+", "chars", "again",
+            "self ms", "total ms"));
+        for (int n : rules()) {
+            sb.append(String.format(
+                "%-16s %8d %8d %8d %8d %8d %8d %9.3f %9.3f\n",
+                nodes[n].left().text(), calls[n], oks[n], fails[n], errors[n],
+                chars[n], again[n], self[n] / 1e6, total[n] / 1e6));
+        }
+        return sb.toString();
+    }
+
+    // List the numbers of the rules which have been called, by cost.
+    private List<Integer> rules() {
+        List<Integer> list = new ArrayList<>();
+        for (int n = 0; n < nodes.length; n++) {
+            if (nodes[n].op() == Rule && calls[n] > 0) list.add(n);
+        }
+        list.sort((a, b) -> self[a] != self[b] ? Long.compare(self[b], self[a])
+            : Integer.compare(a, b));
+        return list;
+    }
+
+    // Check the counts for a simulated parse of a = b 'x' / b 'y' where b
+    // matches any character, on input "zy".
+    public static void main(String[] args) {
+        Node b = new Node(Id, new Source("b"));
+        Node r1 = new Node(Rule, new Node(Id, new Source("a")), b, null);
+        Node r2 = new Node(Rule, new Node(Id, new Source("b")),
+            new Node(Point, new Source(".")), null);
+        Node root = new Node(List, r1, r2, null);
+        Profiler p = new Profiler();
+        p.start(root.number());
+        p.enter(r1, 0);
+        p.enter(r2, 0);
+        p.exit(r2, 1, true);
+        p.back(1, 0);
+        p.enter(r2, 0);
+        p.exit(r2, 1, true);
+        p.exit(r1, 2, true);
+        int n1 = r1.get(NUM), n2 = r2.get(NUM);
+        assert(p.calls[n1] == 1 && p.calls[n2] == 2);
+        assert(p.oks[n2] == 2 && p.chars[n2] == 2 && p.again[n2] == 1);
+        assert(p.again[n1] == 0 && p.examined(2) == 3);
+        assert(p.total[n1] >= p.self[n1] && p.total[n1] >= p.total[n2]);
+        String report = p.report(2, 2);
+        assert(report.startsWith("Profile: 3 chars examined, input 2 chars"));
+        assert(report.contains("amplification 1.50\n"));
+        assert(report.contains("\nb "));
+        System.out.println("Profiler class OK");
+    }
+}
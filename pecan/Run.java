@@ -6,18 +6,43 @@ import java.util.*;
 import java.text.*;
 import java.io.*;
 import java.nio.file.*;
-import java.nio.charset.*;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 /* Read in a file of tests and run them, in response to a command line:
 
-    pecan [-t | -trace] [line] testfile
-    pecan grammar [-b | -c] output
+    pecan [-t | -trace] [-r | -record] [-p | -profile] [-j] [line] testfile
+    pecan grammar [-b | -c] output [-j] [-inline size] [-O]
+    pecan grammar -i input [-d delimiter | -s] [-a] [-j] [-limits s,b,t]
+
+With -c and -j, the rules are compiled in parallel. With -inline, calls of
+non-recursive rules with up to the given number of nodes are replaced by copies
+of the rule bodies. With -O, choices between literal strings are matched with a
+sorted table of keys, which needs keys and key formats, or the KEYS op, in the
+target, and loops (x! .)* which skip to a literal delimiter x search for it,
+which needs an until format, or the UNTIL op. Also with -O, the bytecode
+doesn't save input positions where they can't be needed. When compiling,
+warnings are printed for lookaheads which can make parsing take more than
+linear time, as found by the Analyser. The last form parses an input file
+consisting of records, each ending with the delimiter (default newline),
+applying the grammar to each record separately, in parallel with -j. The
+delimiter can contain escapes \nnn, as in test files. With -s, the input is
+parsed as a whole, but the items of its main repetition are parsed
+speculatively in parallel first. With -a, which can't be combined with -s, only
+acceptance matters, so records are recognised first with the actions and
+markers stripped out, accepted records produce no output, and rejected ones are
+parsed again to report the error. With -limits, each parse is abandoned with a
+resource limit error if it takes more than s steps, backtracks over more than b
+characters in lookaheads, or takes more than t milliseconds, where 0 means no
+limit.
 */
 
 class Run {
-    private boolean tracing, compiling, bytecode;
-    private String infile, outfile, sourcefile;
-    private int line = 0;
+    private boolean tracing, recording, profiling, parallel;
+    private boolean compiling, bytecode, records, speculative, optimise;
+    private boolean accepting;
+    private String infile, outfile, sourcefile, delimiter;
+    private int line = 0, inline = 0;
+    private long[] limits = new long[3];
     private Evaluator evaluator;
 
     public static void main(String[] args) {
@@ -27,6 +52,7 @@ class Run {
             Evaluator.main(args);
             Compiler.main(args);
             Generator.main(args);
+            Analyser.main(args);
         }
         else {
             Run program = new Run();
@@ -36,20 +62,28 @@ class Run {
 
     private void run(String[] args) {
         if (args == null) usage();
-        tracing = compiling = bytecode = false;
+        tracing = recording = profiling = parallel = false;
+        compiling = bytecode = records = false;
         for (int i = 0; i < args.length; i++) {
             if (args[i].equals("-b")) compiling = true;
             if (args[i].equals("-c")) compiling = true;
+            if (args[i].equals("-i")) records = true;
         }
         if (compiling) runCompile(args);
+        else if (records) runRecords(args);
         else runTest(args);
     }
 
-    // pecan [-t | -trace] [line] testfile
+    // pecan [-t | -trace] [-r | -record] [-p | -profile] [-j] [line] testfile
     private void runTest(String[] args) {
         for (int i = 0; i < args.length; i++) {
             if (args[i].equals("-trace")) tracing = true;
             else if (args[i].equals("-t")) tracing = true;
+            else if (args[i].equals("-record")) recording = true;
+            else if (args[i].equals("-r")) recording = true;
+            else if (args[i].equals("-profile")) profiling = true;
+            else if (args[i].equals("-p")) profiling = true;
+            else if (args[i].equals("-j")) parallel = true;
             else if (args[i].startsWith("-")) usage();
             else if (Character.isDigit(args[i].charAt(0))) {
                 line = Integer.parseInt(args[i]);
@@ -62,7 +96,7 @@ class Run {
         Test.run(e, args);
     }
 
-    // pecan grammar [-b | -c] output
+    // pecan grammar [-b | -c] output [-j] [-inline size] [-O]
     private void runCompile(String[] args) {
         for (int i = 0; i < args.length; i++) {
             if (args[i].equals("-b") || args[i].equals("-c")) {
@@ -70,76 +104,161 @@ class Run {
                 outfile = args[i+1];
                 i++;
             }
+            else if (args[i].equals("-j")) parallel = true;
+            else if (args[i].equals("-O")) optimise = true;
+            else if (i + 1 < args.length && args[i].equals("-inline")) {
+                inline = Integer.parseInt(args[++i]);
+            }
             else if (args[i].startsWith("-")) usage();
             else if (sourcefile == null) sourcefile = args[i];
             else usage();
         }
         if (sourcefile == null) usage();
         Source grammar = new Source(new File(sourcefile));
+        String warnings = new Analyser().run(grammar);
+        if (! warnings.startsWith("Error")) System.err.print(warnings);
         if (bytecode) {
             Generator generator = new Generator();
+            generator.inline(inline);
+            generator.optimise(optimise);
             generator.run(grammar);
             writeBinary(outfile, generator.getBytes());
             System.out.println("Bytecode file " + outfile + " written.");
         }
         else {
-            List<String> lines = read(outfile);
-            Formats formats = extract(lines);
+            Formats formats = extract(outfile);
             Compiler compiler = new Compiler();
             compiler.formats(formats);
-            String functions = compiler.run(grammar);
-            write(outfile, lines, functions);
+            compiler.inline(inline);
+            compiler.optimise(optimise);
+            if (parallel) {
+                compiler.threads(Runtime.getRuntime().availableProcessors());
+            }
+            write(outfile, compiler, grammar);
         }
     }
 
-    // Read template program.
-    private List<String> read(String outfile) {
-        List<String> lines = null;
-        Path p = Paths.get(outfile);
-        try { lines = Files.readAllLines(p, StandardCharsets.UTF_8); }
-        catch (Exception e) {
-            System.err.println("Error: can't read file " + e.getMessage());
+    // pecan grammar -i input [-d delimiter | -s] [-a] [-j] [-limits s,b,t]
+    private void runRecords(String[] args) {
+        delimiter = "\n";
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-i") && i + 1 < args.length) infile = args[++i];
+            else if (args[i].equals("-d") && i + 1 < args.length) {
+                delimiter = unescape(args[++i]);
+            }
+            else if (args[i].equals("-s")) speculative = true;
+            else if (args[i].equals("-a")) accepting = true;
+            else if (args[i].equals("-limits") && i + 1 < args.length) {
+                String[] ns = args[++i].split(",");
+                if (ns.length != 3) usage();
+                for (int j = 0; j < 3; j++) limits[j] = Long.parseLong(ns[j]);
+            }
+            else if (args[i].equals("-j")) parallel = true;
+            else if (args[i].startsWith("-")) usage();
+            else if (sourcefile == null) sourcefile = args[i];
+            else usage();
+        }
+        if (sourcefile == null || infile == null) usage();
+        if (speculative && accepting) usage();
+        evaluator = new Evaluator();
+        evaluator.recognising(accepting);
+        evaluator.limits(limits[0], limits[1], limits[2]);
+        String message = evaluator.grammar(new Source(new File(sourcefile)));
+        if (message != null) {
+            System.err.print(message);
             System.exit(1);
         }
-        return lines;
+        int threads = 1;
+        if (parallel) threads = Runtime.getRuntime().availableProcessors();
+        Source input = new Source(new File(infile));
+        if (speculative) {
+            System.out.print(evaluator.runSpeculative(input, threads));
+        }
+        else System.out.print(evaluator.runRecords(input, delimiter, threads));
+    }
+
+    // Replace decimal escapes \nnn by characters.
+    private String unescape(String s) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < s.length(); i++) {
+            int j = i + 1;
+            while (j < s.length() && Character.isDigit(s.charAt(j))) j++;
+            if (s.charAt(i) != '\\' || j == i + 1) sb.append(s.charAt(i));
+            else {
+                sb.appendCodePoint(Integer.parseInt(s.substring(i + 1, j)));
+                i = j - 1;
+            }
+        }
+        return sb.toString();
     }
 
-    // Extract print format attributes from the template program.
-    private Formats extract(List<String> lines) {
+    // Extract print format attributes from the template program, reading
+    // only as far as the end of its <pecan> tag.
+    private Formats extract(String outfile) {
         Formats formats = new Formats();
         boolean reading = false;
-        int i;
-        for (i = 1; i <= lines.size(); i++) {
-            String line = lines.get(i-1);
-            if (reading && line.indexOf('>') >= 0) break;
-            if (reading) formats.readLine(i, outfile, line);
-            if (! reading && line.indexOf("<pecan") >= 0) {
-                if (line.indexOf("<pecan>") < 0) reading = true;
-                else err(i, outfile, "expecting attributes");
+        int i = 1;
+        try (BufferedReader in = Files.newBufferedReader(Paths.get(outfile))) {
+            for (String line; (line = in.readLine()) != null; i++) {
+                if (reading && line.indexOf('>') >= 0) break;
+                if (reading) formats.readLine(i, outfile, line);
+                if (! reading && line.indexOf("<pecan") >= 0) {
+                    if (line.indexOf("<pecan>") < 0) reading = true;
+                    else err(i, outfile, "expecting attributes");
+                }
             }
         }
+        catch (Exception e) {
+            System.err.println("Error: can't read file " + e.getMessage());
+            System.exit(1);
+        }
         formats.fillDefaults(i, outfile);
         return formats;
     }
 
-    // Write out template file with inserted code. Make sure a crash during
-    // writing is very unlikely.
-    private void write(String outfile, List<String> lines, String functions) {
-        PrintStream out = null;
-        try { out = new PrintStream(new File(outfile)); }
-        catch (Exception e) { throw new Error(e); }
+    // Write out the template file with the compiled functions inserted. The
+    // template is streamed to a temporary file, which then replaces it, so a
+    // crash during writing leaves the original file intact.
+    private void write(String outfile, Compiler compiler, Source grammar) {
+        Path path = Paths.get(outfile).toAbsolutePath();
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(path.getParent(), ".pecan", ".tmp");
+            try (
+                BufferedReader in = Files.newBufferedReader(path);
+                BufferedWriter out = Files.newBufferedWriter(temp, UTF_8)
+            ) {
+                copy(in, out, compiler, grammar);
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (IOException e) {
+            try { if (temp != null) Files.deleteIfExists(temp); }
+            catch (IOException e2) { }
+            System.err.println("Error: can't write file " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // Copy the template, replacing the contents of the <pecan> element by the
+    // compiled functions, or by an error message.
+    private void copy(
+        BufferedReader in, BufferedWriter out, Compiler compiler, Source grammar
+    ) throws IOException {
         boolean skip = false, tag = false;
-        for (int i = 1; i <= lines.size(); i++) {
-            String line = lines.get(i-1);
+        for (String line = in.readLine(); line != null; line = in.readLine()) {
             if (skip && line.indexOf("</pecan>") >= 0) skip = false;
             if (skip) continue;
-            out.println(line);
+            out.write(line);
+            out.newLine();
             if (line.indexOf("<pecan") >= 0) tag = true;
             if (tag && line.indexOf(">") >= 0) {
                 tag = false;
                 skip = true;
-                out.println();
-                out.println(functions);
+                out.newLine();
+                String e = compiler.write(grammar, out);
+                if (e != null) out.write(e);
+                out.newLine();
             }
         }
     }
@@ -157,9 +276,12 @@ class Run {
     private static void usage() {
         System.err.println(
             "Usage:\n" +
-            "    pecan [-t | -trace] [line] testfile\n" +
-            "    pecan grammar -c programfile\n" +
-            "    pecan grammar -b binaryfile\n");
+            "    pecan [-t | -trace] [-r | -record] [-p | -profile] [-j]" +
+            " [line] testfile\n" +
+            "    pecan grammar -c programfile [-j] [-inline size] [-O]\n" +
+            "    pecan grammar -b binaryfile [-inline size] [-O]\n" +
+            "    pecan grammar -i inputfile [-d delimiter | -s] [-a] [-j]" +
+            " [-limits s,b,t]\n");
         System.exit(1);
     }
 
@@ -0,0 +1,450 @@
+// Pecan 1.0 input sampler. Free and open source. See licence.txt.
+
+package pecan;
+
+import java.io.*;
+import java.util.*;
+import static pecan.Op.*;
+import static pecan.Node.Flag.*;
+
+/* Generate random inputs for a grammar, for benchmarks and stress tests. The
+main method with no command line arguments carries out tests. Otherwise:
+
+    java pecan.Sampler [-s size] [-d depth] [-n count] [-r seed] [-x] grammar
+
+prints count inputs of about size bytes, escaped and separated by lines of
+equal signs as in a test file. If the grammar file is a test file, its first
+section is used. With -x, near misses are printed instead, i.e. inputs which
+are close to valid inputs, but which the grammar rejects, to exercise error
+paths.
+
+A candidate input is produced by walking the tree of a stacked grammar, making
+random choices at each Or, Opt, Any, Some, Set, Range, Point or Cat node. The
+outermost repetitions, i.e. those in the rules nearest to the first rule, are
+repeated until the target size is reached, while others are kept short.
+Lookaheads, markers and actions produce nothing, and tags produce token names
+for a token grammar.
+
+Each node has a cost, i.e. the minimum length of text it can produce, found by
+iterating to a fixed point as in the Checker. Once the target size or the
+maximum rule depth is reached, the cheapest choices are made, so that the
+expansion terminates. That is guaranteed because the Checker has ruled out left
+recursion, so every cycle of rules has a positive cost. An infinite cost means
+that a node can't succeed, e.g. '', and choices are never made that lead to it.
+
+Ordered choice, greedy repetition and lookahead mean that a candidate is not
+necessarily accepted, so each candidate is checked with the Evaluator, and
+another is tried if it is rejected. A near miss is made from a valid input by
+deleting, inserting, duplicating or replacing a character or token. */
+
+class Sampler {
+    private static final int INFINITE = Integer.MAX_VALUE / 2;
+    private Random random;
+    private int size = 100, depth = 20, attempts = 100;
+    private Node grammar;
+    private boolean tokens;
+    private Evaluator evaluator;
+    private IdentityHashMap<Node,Integer> costs;
+    private Set<Node> outerLoops;
+    private Map<String,int[]> categories = new HashMap<>();
+    private StringBuilder text;
+    private int level, loops;
+    private boolean closing;
+
+    // Create a sampler with a random seed, for reproducible inputs.
+    Sampler(long seed) { random = new Random(seed); }
+
+    // Set the target size in bytes (approximately) and the maximum depth of
+    // rule calls, before closing off the expansion.
+    void size(int n) { size = n; }
+    void depth(int n) { depth = n; }
+
+    // Set up a grammar. Return an error message, or null.
+    String grammar(Source source) {
+        evaluator = new Evaluator();
+        String message = evaluator.grammar(source);
+        if (message != null) return message;
+        grammar = new Stacker().run(source);
+        tokens = grammar.has(TI);
+        costs = new IdentityHashMap<>();
+        boolean changed = true;
+        while (changed) changed = cost(grammar);
+        outerLoops = new HashSet<>();
+        findOuterLoops();
+        if (costOf(grammar.left().right()) >= INFINITE) {
+            return "Error: the first rule can't succeed\n";
+        }
+        return null;
+    }
+
+    // Generate a valid input, or return null if none is found.
+    String valid() {
+        String s = validText();
+        return s == null ? null : escape(s);
+    }
+
+    // Generate a near miss, or return null if none is found.
+    String nearMiss() {
+        String s = validText();
+        if (s == null) return null;
+        for (int i = 0; i < attempts; i++) {
+            String t = escape(mutate(s));
+            if (! accepts(t)) return t;
+        }
+        return null;
+    }
+
+    // Generate the text of a valid input, before escaping.
+    private String validText() {
+        for (int i = 0; i < attempts; i++) {
+            String s = candidate();
+            if (s != null && accepts(escape(s))) return s;
+        }
+        return null;
+    }
+
+    // Escape a text, as in a test file, where a backslash starts an escape,
+    // and a newline straight after an escape is ignored. A text can't end
+    // with an escape, so an ignored newline is added after a final one.
+    static String escape(String s) {
+        StringBuilder sb = new StringBuilder();
+        boolean escaped = false;
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            if (ch == '\\') sb.append("\\b");
+            else if (ch == '\n' && escaped) sb.append("\\n");
+            else sb.append(ch);
+            escaped = ch == '\\' || (ch == '\n' && escaped);
+        }
+        if (escaped) sb.append('\n');
+        return sb.toString();
+    }
+
+    // Check whether the grammar accepts an input, given in escaped form.
+    boolean accepts(String s) {
+        return ! evaluator.run(new Source(s)).startsWith("Error");
+    }
+
+    // Generate a candidate input, or null if the expansion gets out of hand.
+    private String candidate() {
+        text = new StringBuilder();
+        level = loops = 0;
+        closing = false;
+        if (! generate(grammar.left().right())) return null;
+        if (tokens && text.length() > 0) text.setLength(text.length() - 1);
+        return text.toString();
+    }
+
+    // Update the costs of a node and its subnodes. Return true for a change.
+    private boolean cost(Node node) {
+        boolean changed = false;
+        if (node.left() != null) changed |= cost(node.left());
+        if (node.right() != null) changed |= cost(node.right());
+        int old = costOf(node), c;
+        switch (node.op()) {
+            case Error: case Temp: case List: case Empty: c = 0; break;
+            case Rule: c = costOf(node.right()); break;
+            case Id: c = costOf(node.ref()); break;
+            case Or: c = Math.min(costOf(node.left()), costOf(node.right()));
+                break;
+            case And: c = Math.min(INFINITE,
+                costOf(node.left()) + costOf(node.right())); break;
+            case Opt: case Any: c = 0; break;
+            case Some: case See: case Keys: case Span: c = costOf(node.left());
+                break;
+            case Has: c = costOf(node.left()) >= INFINITE ? INFINITE : 0; break;
+            case Not: case Split: case Eot: case Until: c = 0; break;
+            case Mark: case Drop: case Act: case Success: c = 0; break;
+            case Fail: c = INFINITE; break;
+            case Text: c = node.rawText().length(); break;
+            case Tag: case Char: case Set: case Range: case Point: case Cat:
+                c = 1; break;
+            default: assert false : "Unexpected node type " + node.op();
+                c = 0; break;
+        }
+        if (c == old) return changed;
+        costs.put(node, c);
+        return true;
+    }
+
+    // Find the loops which are not inside other loops, in the rules reachable
+    // from the first rule through the fewest rule calls. Prefer loops which
+    // call rules, rather than ones which just skip spaces, say.
+    private void findOuterLoops() {
+        Set<Node> seen = new HashSet<>();
+        List<Node> rules = new ArrayList<>();
+        rules.add(grammar.left());
+        seen.add(grammar.left());
+        while (! rules.isEmpty() && outerLoops.isEmpty()) {
+            List<Node> next = new ArrayList<>();
+            for (Node rule : rules) findOuterLoops(rule.right(), seen, next);
+            rules = next;
+        }
+        Set<Node> calling = new HashSet<>();
+        for (Node loop : outerLoops) if (calls(loop)) calling.add(loop);
+        if (! calling.isEmpty()) outerLoops = calling;
+    }
+
+    // Check whether a node contains a rule call.
+    private boolean calls(Node node) {
+        if (node.op() == Id) return true;
+        if (node.left() != null && calls(node.left())) return true;
+        return node.right() != null && calls(node.right());
+    }
+
+    private void findOuterLoops(Node node, Set<Node> seen, List<Node> next) {
+        if (node.op() == Any || node.op() == Some) outerLoops.add(node);
+        else if (node.op() == Id) {
+            if (seen.add(node.ref())) next.add(node.ref());
+        }
+        else {
+            if (node.left() != null) findOuterLoops(node.left(), seen, next);
+            if (node.right() != null) findOuterLoops(node.right(), seen, next);
+        }
+    }
+
+    // Get the cost of a node, which is initially infinite.
+    private int costOf(Node node) {
+        Integer c = costs.get(node);
+        return c == null ? INFINITE : c;
+    }
+
+    // Generate text for a node. Return false if the depth gets out of hand.
+    private boolean generate(Node node) {
+        if (! closing && text.length() >= size) closing = true;
+        switch (node.op()) {
+            case Rule: return generate(node.right());
+            case Id: return generateId(node);
+            case Or: return generateOr(node);
+            case And: return generate(node.left()) && generate(node.right());
+            case Opt:
+                if (closing || random.nextBoolean()) return true;
+                return generate(node.left());
+            case Any: case Some: return generateLoop(node);
+            case See: case Keys: case Span: return generate(node.left());
+            case Tag: return generateTag(node);
+            case Char: text.appendCodePoint(node.charCode()); return true;
+            case Text: text.append(node.rawText()); return true;
+            case Set: return generateSet(node);
+            case Range: return generateRange(node);
+            case Point: text.append((char) (' ' + random.nextInt(95)));
+                return true;
+            case Cat: return generateCat(node);
+            case Fail: return false;
+            default: return true;
+        }
+    }
+
+    // Generate text for a rule, closing off the expansion if deep.
+    private boolean generateId(Node node) {
+        if (level > 10 * depth) return false;
+        boolean saveClosing = closing;
+        if (level >= depth) closing = true;
+        level++;
+        boolean ok = generate(node.ref());
+        level--;
+        closing = saveClosing || text.length() >= size;
+        return ok;
+    }
+
+    // Pick one of a chain of alternatives, the cheapest if closing.
+    private boolean generateOr(Node node) {
+        List<Node> alts = new ArrayList<>();
+        for (; node.op() == Or; node = node.right()) alts.add(node.left());
+        alts.add(node);
+        int best = INFINITE;
+        for (Node alt : alts) best = Math.min(best, costOf(alt));
+        List<Node> choices = new ArrayList<>();
+        for (Node alt : alts) {
+            int c = costOf(alt);
+            if (c >= INFINITE || (closing && c > best)) continue;
+            choices.add(alt);
+        }
+        if (choices.isEmpty()) return false;
+        return generate(choices.get(random.nextInt(choices.size())));
+    }
+
+    // Generate x* or x+. An outer loop repeats until the target size is
+    // reached, and other loops repeat a random small number of times.
+    private boolean generateLoop(Node node) {
+        boolean outer = loops == 0 && outerLoops.contains(node);
+        int n = node.op() == Some ? 1 : 0;
+        loops++;
+        boolean ok = true;
+        for (int i = 0; ok; i++) {
+            if (i >= n) {
+                if (closing) break;
+                if (! outer && random.nextBoolean()) break;
+            }
+            int length = text.length();
+            ok = generate(node.left());
+            if (i >= n && text.length() == length) break;
+        }
+        loops--;
+        return ok;
+    }
+
+    // Generate a token name.
+    private boolean generateTag(Node node) {
+        String tag = node.text().substring(1);
+        if (tag.startsWith("`")) tag = tag.substring(1, tag.length() - 1);
+        text.append(tag).append(' ');
+        return true;
+    }
+
+    // Generate one of the characters in a set.
+    private boolean generateSet(Node node) {
+        String s = node.rawText();
+        int n = s.codePointCount(0, s.length());
+        if (n == 0) return false;
+        int i = s.offsetByCodePoints(0, random.nextInt(n));
+        text.appendCodePoint(s.codePointAt(i));
+        return true;
+    }
+
+    // Generate a character in a range, avoiding surrogates.
+    private boolean generateRange(Node node) {
+        int low = node.low(), high = node.high();
+        if (low > high) return false;
+        for (int i = 0; i < attempts; i++) {
+            int ch = low + random.nextInt(high - low + 1);
+            if (ch >= 0xD800 && ch <= 0xDFFF) continue;
+            text.appendCodePoint(ch);
+            return true;
+        }
+        return false;
+    }
+
+    // Generate a character in a Unicode category. Find the characters in the
+    // category the first time.
+    private boolean generateCat(Node node) {
+        String name = node.rawText();
+        int[] chars = categories.get(name);
+        if (chars == null) {
+            Category cat = Category.valueOf(name);
+            List<Integer> list = new ArrayList<>();
+            for (int ch = 0; ch < 0x110000 && list.size() < 1000; ch++) {
+                if (ch >= 0xD800 && ch <= 0xDFFF) continue;
+                if (Category.get(ch) == cat) list.add(ch);
+            }
+            chars = new int[list.size()];
+            for (int i = 0; i < chars.length; i++) chars[i] = list.get(i);
+            categories.put(name, chars);
+        }
+        if (chars.length == 0) return false;
+        text.appendCodePoint(chars[random.nextInt(chars.length)]);
+        return true;
+    }
+
+    // Make a small random change to an input, on a character, or a token for
+    // a token grammar.
+    private String mutate(String s) {
+        List<String> units = new ArrayList<>();
+        if (tokens) units.addAll(Arrays.asList(s.split(" ", -1)));
+        else for (int i = 0; i < s.length(); ) {
+            int n = Character.charCount(s.codePointAt(i));
+            units.add(s.substring(i, i + n));
+            i += n;
+        }
+        int i = units.isEmpty() ? 0 : random.nextInt(units.size());
+        String other = units.isEmpty() ? "x" :
+            units.get(random.nextInt(units.size()));
+        if (! tokens && random.nextInt(4) == 0) {
+            other = "" + (char) (' ' + random.nextInt(95));
+        }
+        switch (units.isEmpty() ? 1 : random.nextInt(4)) {
+            case 0: units.remove(i); break;
+            case 1: units.add(i, other); break;
+            case 2: units.add(i, units.get(i)); break;
+            default: units.set(i, other); break;
+        }
+        return String.join(tokens ? " " : "", units);
+    }
+
+    // With no arguments, check that inputs are accepted and near misses are
+    // rejected. Otherwise print inputs.
+    public static void main(String[] args) {
+        if (args.length == 0) { test(); return; }
+        long seed = System.nanoTime();
+        int size = 100, depth = 20, count = 1;
+        boolean miss = false;
+        String file = null;
+        for (int i = 0; i < args.length; i++) {
+            if (i + 1 < args.length && args[i].equals("-s")) {
+                size = Integer.parseInt(args[++i]);
+            }
+            else if (i + 1 < args.length && args[i].equals("-d")) {
+                depth = Integer.parseInt(args[++i]);
+            }
+            else if (i + 1 < args.length && args[i].equals("-n")) {
+                count = Integer.parseInt(args[++i]);
+            }
+            else if (i + 1 < args.length && args[i].equals("-r")) {
+                seed = Long.parseLong(args[++i]);
+            }
+            else if (args[i].equals("-x")) miss = true;
+            else if (args[i].startsWith("-") || file != null) usage();
+            else file = args[i];
+        }
+        if (file == null) usage();
+        Sampler sampler = new Sampler(seed);
+        sampler.size(size);
+        sampler.depth(depth);
+        Source source = new Source(new File(file));
+        int n = source.indexOf("\n==========");
+        if (n >= 0) source = source.sub(0, n + 1);
+        String message = sampler.grammar(source);
+        if (message != null) { System.err.print(message); System.exit(1); }
+        for (int i = 0; i < count; i++) {
+            String s = miss ? sampler.nearMiss() : sampler.valid();
+            if (s == null) {
+                System.err.println("Error: no input found");
+                System.exit(1);
+            }
+            if (i > 0) System.out.println("==========");
+            System.out.println(s);
+        }
+    }
+
+    // Give a usage message and stop.
+    private static void usage() {
+        System.err.println(
+            "Usage: java pecan.Sampler [-s size] [-d depth] [-n count]" +
+            " [-r seed] [-x] grammar\n");
+        System.exit(1);
+    }
+
+    // Check inputs for some small grammars, including a token grammar, a
+    // recursive grammar which needs closing off, and a grammar with
+    // backslashes and newlines, which need escaping.
+    private static void test() {
+        String[] grammars = {
+            "sum = number ('+' number)* <>\nnumber = ('0..9')+\n",
+            "s = (x / y)+ <>\nx = \"ab\" 'cd'?\ny = Nd '.'\n",
+            "s = e <>\ne = t ('+' t)*\nt = 'x' / '(' e ')'\n",
+            "s = (%a %b / %c)* <> @s\n",
+            "s = (['a' 'b'] / 'a' 'c')* <>\n",
+            "s = ('\\92' / '\\10' / 'a')* <>\n",
+        };
+        for (String g : grammars) {
+            Sampler sampler = new Sampler(42);
+            sampler.size(200);
+            sampler.depth(5);
+            assert(sampler.grammar(new Source(g)) == null);
+            for (int i = 0; i < 10; i++) {
+                String s = sampler.valid();
+                assert(s != null && sampler.accepts(s)) : g;
+            }
+            String big = sampler.valid();
+            assert(big.length() >= 150) : g;
+            String miss = sampler.nearMiss();
+            assert(miss != null && ! sampler.accepts(miss)) : g;
+        }
+        assert(escape("a\\\nb\n").equals("a\\b\\nb\n"));
+        assert(escape("a\\").equals("a\\b\n"));
+        assert(new Source(escape("a\\\n")).rawText().equals("a\\\n"));
+        Sampler sampler = new Sampler(1);
+        assert(sampler.grammar(new Source("s = ''\n")) != null);
+        System.out.println("Sampler class OK");
+    }
+}
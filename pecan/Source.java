@@ -19,7 +19,10 @@ alternative to using String.codePointAt, Character.charCount etc.) and for
 handling Pecan's escapes.
 
 There is a method for generating an accurate error message with path name, line
-number and column information from a source fragment.
+number and column information from a source fragment. Line numbers are found
+from an index of line start positions, which is built the first time it is
+needed, shared by all the sources cut from the same byte array, and searched by
+binary search, so that finding a line doesn't involve scanning the file.
 
 The implementation is similar to that of String, except that a source is a
 segment of a byte array rather than a char array. In the case of a substring of
@@ -34,18 +37,25 @@ class Source {
     private byte[] bytes;
     private int start, end;
 
+    // A one-element array, shared between sources with the same byte array,
+    // holding the line start index, or null if it hasn't been built yet.
+    private int[][] index;
+
     // BOM sequence, and invalid byte to mark filename prefix or unused bytes.
     private static byte[] BOM = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
     private static byte MARK = (byte) 0xFF;
 
     // Construct a Source directly from its fields.
-    private Source(byte[] bs, int s, int e) { bytes = bs; start = s; end = e; }
+    private Source(byte[] bs, int s, int e, int[][] ix) {
+        bytes = bs; start = s; end = e; index = ix;
+    }
 
     // Construct a Source from a String.
     Source(String s) {
         bytes = s.getBytes(UTF_8);
         start = 0;
         end = bytes.length;
+        index = new int[1][];
     }
 
     // Read in a Source from a UTF-8 file. Prefix the text by MARK + "path\n",
@@ -59,6 +69,7 @@ class Source {
         byte[] pathBytes = path.getBytes(UTF_8);
         int plen = pathBytes.length;
         bytes = new byte[1 + plen + 1 + flen + 1];
+        index = new int[1][];
         bytes[0] = MARK;
         System.arraycopy(pathBytes, 0, bytes, 1, plen);
         bytes[plen + 1] = '\n';
@@ -98,7 +109,7 @@ class Source {
     // Construct a subsource, between two given byte-positions.
     Source sub(int s, int e) {
         check(0 <= s && s <= e && start + e <= end);
-        return new Source(bytes, start + s, start + e);
+        return new Source(bytes, start + s, start + e, index);
     }
 
     // Construct a subsource covering two other subsources.
@@ -108,7 +119,7 @@ class Source {
         check(start <= s2.start && s2.end <= end);
         int b = Math.min(s1.start, s2.start);
         int e = Math.max(s1.end, s2.end);
-        return new Source(bytes, b, e);
+        return new Source(bytes, b, e, index);
     }
 
     // Return a substring.
@@ -299,11 +310,11 @@ class Source {
         int s = start;
         for (int e = s; e < end; e++) {
             if (bytes[e] == '\n') {
-                list.add(new Source(bytes, s, e+1));
+                list.add(new Source(bytes, s, e+1, index));
                 s = e+1;
             }
         }
-        if (end > s) list.add(new Source(bytes, s, end));
+        if (end > s) list.add(new Source(bytes, s, end, index));
         return list;
     }
 
@@ -330,21 +341,65 @@ class Source {
         check (0 <= p && p <= length());
         int fs = fileStart(), fe = fileEnd();
         check(fs <= start && end <= fe);
-        int r = 1;
-        for (int i = fs; i < start+p; i++) if (bytes[i] == '\n') r++;
-        return r;
+        return findLine(start + p) + 1;
+    }
+
+    // Build the index of line start positions now, if it hasn't been built, so
+    // that subsources used by different threads don't race to build it.
+    void index() { lineStarts(); }
+
+    // Get the index of line start positions, building it if necessary.
+    private int[] lineStarts() {
+        if (index[0] != null) return index[0];
+        int fs = fileStart(), fe = fileEnd();
+        int n = 1;
+        for (int i = fs; i < fe; i++) if (bytes[i] == '\n') n++;
+        int[] starts = new int[n];
+        starts[0] = fs;
+        n = 1;
+        for (int i = fs; i < fe; i++) if (bytes[i] == '\n') starts[n++] = i+1;
+        index[0] = starts;
+        return starts;
+    }
+
+    // Find the line containing absolute position p, counting from zero, by
+    // binary search for the last line start at or before p.
+    private int findLine(int p) {
+        int[] starts = lineStarts();
+        int lo = 0, hi = starts.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (starts[mid] <= p) lo = mid;
+            else hi = mid - 1;
+        }
+        return lo;
     }
 
     // Find the start of the line containing p.
-    private int startLine(int fs, int p) {
-        while (p > fs && bytes[p-1] != '\n') p--;
-        return p;
+    private int startLine(int p) {
+        return lineStarts()[findLine(p)];
     }
 
     // Find the end of the line containing p.
     private int endLine(int p, int fe) {
-        while (p < fe && bytes[p] != '\n') p++;
-        return p;
+        int[] starts = lineStarts();
+        int next = findLine(p) + 1;
+        if (next >= starts.length || starts[next] - 1 >= fe) return fe;
+        return starts[next] - 1;
+    }
+
+    // Find the start of the line containing p, as a position in this source,
+    // or 0 if the line starts before it.
+    int lineStart(int p) {
+        check(0 <= p && p <= length());
+        return Math.max(0, startLine(start + p) - start);
+    }
+
+    // Find the end of the line containing p, as a position in this source,
+    // excluding the newline, or the length if the line ends after it.
+    int lineEnd(int p) {
+        check(0 <= p && p <= length());
+        return Math.min(length(), endLine(start + p, fileEnd()) - start);
     }
 
     // Create an error message referring to this text, within its file.
@@ -354,7 +409,7 @@ class Source {
         int s = start;
         int e = end;
         int row = lineNumber(0), endRow = lineNumber(length());
-        int startLine = startLine(fs, start), endLine = endLine(start, fe);
+        int startLine = startLine(start), endLine = endLine(start, fe);
         if (! message.equals("")) message = " " + message;
         String line = new String(bytes, startLine, endLine-startLine, UTF_8);
         int col = s - startLine;
@@ -583,12 +638,35 @@ class Source {
         assert(s.sub(0,0).error("message").equals(out));
     }
 
+    // Test line numbers against a direct count, for subsources sharing an
+    // index, with and without a final newline.
+    private static void testLines() {
+        String text = "one\n\ntwo\nthree";
+        for (int k = 0; k < 2; k++) {
+            Source s = new Source(text);
+            Source t = s.sub(4, s.length());
+            for (int p = 0; p <= s.length(); p++) {
+                int n = 1;
+                for (int i = 0; i < p; i++) if (text.charAt(i) == '\n') n++;
+                assert(s.lineNumber(p) == n);
+                if (p >= 4) assert(t.lineNumber(p - 4) == n);
+            }
+            text = text + "\n";
+        }
+        Source s = new Source("ab\ncd\n");
+        assert(s.sub(4,5).error("m").equals("Error on line 2: m\ncd\n ^"));
+        assert(s.lineStart(4) == 3 && s.lineEnd(4) == 5);
+        assert(s.lineStart(2) == 0 && s.lineEnd(2) == 2);
+        assert(s.sub(4,6).lineStart(0) == 0 && s.sub(1,4).lineEnd(0) == 1);
+    }
+
     public static void main(String[] args) {
         testUTF_8();
         testStrings();
         testEscapes();
         testFile();
         testMessages();
+        testLines();
         System.out.println("Source class OK");
     }
 }
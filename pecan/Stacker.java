@@ -61,6 +61,8 @@ class Stacker implements Testable {
         Test.run(stacker, args);
     }
 
+    public Testable copy() { return new Stacker(); }
+
     public Node run(Source source) {
         Checker checker = new Checker();
         root = checker.run(source);
@@ -109,6 +111,7 @@ class Stacker implements Testable {
         case List: case Empty: scanZero(node); break;
         case Mark: case Tag: case Char: case Text: scanZero(node); break;
         case Set: case Point: case Cat: case Range: scanZero(node); break;
+        case Keys: case Span: case Until: scanZero(node); break;
         case Split: case Eot: case Has: scanZero(node); break;
         case Not: case Success: case Fail: scanZero(node); break;
         case Rule: scanRule(node); break;
@@ -9,6 +9,7 @@ import java.nio.*;
 import java.nio.file.*;
 import java.nio.charset.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /* Run a collection of tests. This supports both internal unit tests for pecan
 classes, and external user tests. To run tests, call the static method Test.run.
@@ -33,13 +34,18 @@ ignored.
 Line endings in a test file are converted to \n when it is read in. To allow the
 test file to contain control characters or unicode characters as plain text,
 numerical escapes are supported, so \nnn represents a character by its decimal
-code, or by its hex code if the first digit is zero. */
+code, or by its hex code if the first digit is zero.
+
+Normally, testing stops at the first failure. In parallel mode, the tests are
+partitioned, with each grammar section starting a new partition, and each
+partition is run on a fresh copy of the object, using a pool of threads. All
+the failures are collected and reported, in file order, followed by counts. */
 
 public class Test {
     private Source original;
     private Source in;
     private Source out;
-    private boolean grammar, trace, raw;
+    private boolean grammar, trace, record, raw;
 
     // No testing of the test class.
     public static void main(String[] args) {
@@ -49,15 +55,23 @@ public class Test {
 
     // Run tests on the class which the object belongs to. The command line
     // arguments can optionally contain a filename of tests, a line number to
-    // specify a single test from the file, or a "-t" or "-trace" option. The
-    // default file is the unit test file for the given class.
+    // specify a single test from the file, a "-t" or "-trace" option, a "-r"
+    // or "-record" option, a "-p" or "-profile" option, or a "-j" option to
+    // run in parallel. The default file is the unit test file for the given
+    // class.
     static void run(Testable object, String[] args) {
         String file = null;
-        boolean trace = false;
+        boolean trace = false, record = false, profile = false;
+        boolean parallel = false;
         int line = 0;
         for (int i = 0; i < args.length; i++) {
             if (args[i].equals("-trace")) trace = true;
             else if (args[i].equals("-t")) trace = true;
+            else if (args[i].equals("-record")) record = true;
+            else if (args[i].equals("-r")) record = true;
+            else if (args[i].equals("-profile")) profile = true;
+            else if (args[i].equals("-p")) profile = true;
+            else if (args[i].equals("-j")) parallel = true;
             else if (args[i].startsWith("-")) usage();
             else if (Character.isDigit(args[i].charAt(0))) {
                 if (line != 0) usage();
@@ -71,6 +85,12 @@ public class Test {
         if (file == null) file = "tests/"+ name +".txt";
         Source source = new Source(new File(file));
         List<Test> tests = makeTests(source, trace);
+        if (record) object.recording(true);
+        if (profile) object.profiling(true);
+        if (parallel && ! trace && line == 0 && object.copy() != null) {
+            runParallel(object, tests, file);
+            return;
+        }
         int n = runTests(object, tests, line);
         report(unitTest, name, line, n);
     }
@@ -78,7 +98,8 @@ public class Test {
     // Give a usage message and stop.
     private static void usage() {
         System.err.println(
-            "Error: options are [-t | -trace] [line] [testfile]\n"
+            "Error: options are [-t | -trace] [-r | -record] [-p | -profile]" +
+            " [-j] [line] [testfile]\n"
         );
         System.exit(1);
     }
@@ -162,6 +183,80 @@ public class Test {
         return true;
     }
 
+    // The outcome of running a partition of tests in parallel mode.
+    private static class Outcome {
+        int passed, failed;
+        List<String> messages = new ArrayList<>();
+    }
+
+    // Run tests in parallel, and report all the failures, then the counts and
+    // the time taken. Exit with a failure status if any test fails.
+    private static void runParallel(Testable object, List<Test> tests,
+        String file) {
+        long start = System.nanoTime();
+        List<List<Test>> parts = new ArrayList<>();
+        for (Test test : tests) {
+            if (test.grammar || parts.isEmpty()) parts.add(new ArrayList<>());
+            parts.get(parts.size() - 1).add(test);
+            test.in.index();
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Outcome>> futures = new ArrayList<>();
+        for (List<Test> part : parts) {
+            Testable copy = object.copy();
+            futures.add(pool.submit(() -> runPart(copy, part)));
+        }
+        pool.shutdown();
+        int passed = 0, failed = 0;
+        for (int i = 0; i < parts.size(); i++) {
+            Outcome outcome;
+            try { outcome = futures.get(i).get(); }
+            catch (Exception e) {
+                Test first = parts.get(i).get(0);
+                outcome = new Outcome();
+                outcome.messages.add("Exception in tests from line " +
+                    first.in.lineNumber() + " of " + first.in.path() + ": " +
+                    e.getCause());
+                for (Test test : parts.get(i)) {
+                    if (! test.grammar) outcome.failed++;
+                }
+            }
+            for (String message : outcome.messages) System.err.println(message);
+            passed += outcome.passed;
+            failed += outcome.failed;
+        }
+        long ms = (System.nanoTime() - start) / 1000000;
+        System.out.println("Pass " + passed + ", fail " + failed +
+            " tests in " + file + ", " + ms + "ms.");
+        if (failed > 0) System.exit(1);
+    }
+
+    // Run one partition of the tests, on its own object. If the grammar fails,
+    // count the remaining tests as failed.
+    private static Outcome runPart(Testable object, List<Test> part) {
+        Outcome outcome = new Outcome();
+        boolean broken = false;
+        for (Test test : part) {
+            if (test.grammar) {
+                String message = object.grammar(test.in);
+                if (message != null) outcome.messages.add(message);
+                broken = message != null;
+            }
+            else if (broken) outcome.failed++;
+            else {
+                Object obj = object.run(test.in);
+                String message = test.check(obj.toString());
+                if (message == null) outcome.passed++;
+                else {
+                    outcome.failed++;
+                    outcome.messages.add(message);
+                }
+            }
+        }
+        return outcome;
+    }
+
     // Print message and exit.
     private void err(String message) {
         System.err.println(message);
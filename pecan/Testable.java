@@ -17,6 +17,17 @@ interface Testable {
     // Call to switch on tracing.
     default void tracing(boolean on) {}
 
+    // Call to switch on recording of recent trace events, to be reported only
+    // if a test fails.
+    default void recording(boolean on) {}
+
+    // Call to switch on profiling, with a report after each test.
+    default void profiling(boolean on) {}
+
+    // Create a fresh object with the same settings, so that tests can be run
+    // in parallel, or return null if that isn't supported.
+    default Testable copy() { return null; }
+
     // Call to switch on escapes in input.
     default void escaping(boolean on) {}
 
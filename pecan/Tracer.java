@@ -0,0 +1,192 @@
+// Pecan 1.0 tracer. Free and open source. See licence.txt.
+
+package pecan;
+
+import java.util.*;
+import static pecan.Op.*;
+import static pecan.Node.Count.*;
+
+/* Record trace events from a parse compactly, so that tracing is cheap enough
+to leave switched on as a flight recorder, and dumped only if a parse fails.
+
+Each event occupies four ints in a ring buffer: a code combining the kind of
+event with a node number, the input position, and two further numbers. Once
+the buffer is full, each new event overwrites the oldest one, so the buffer
+holds the most recent events. Nodes are numbered depth first, using the NUM
+count, so that they can be recovered from the events. The kinds of event are:
+
+    ENTER    a node is visited during parsing
+    EXIT     a rule finishes, with its success or failure
+    MATCH    input is consumed, or the parse starts
+    BACK     the input position is restored after a lookahead or [x]
+    ACT      an action is carried out, or a drop discards output items
+
+The decoder renders events in the text format printed by the -t option, i.e.
+with P lines showing nodes, I lines showing the input position, and O lines
+showing output. Exit events are recorded but not rendered. A tracer belongs to
+one engine, and so to one thread. In echo mode, each event is also decoded and
+printed as soon as it is recorded.
+
+The nodes are those of the grammar as the Evaluator parses it, after the keys,
+untils and spans transforms, so a choice of literals, a loop over single
+characters, or a skip to a delimiter, appears as one node in a trace. */
+
+class Tracer {
+    private int[] ring;
+    private int mask;
+    private long count;
+    private boolean echo;
+    private Node[] nodes;
+    private String input;
+    private CharSequence output;
+    private Source text;
+    private int charAt, byteAt;
+
+    // Kinds of event.
+    static final int ENTER = 0, EXIT = 1, MATCH = 2, BACK = 3, ACT = 4;
+
+    // Create a tracer which holds the given number of events, rounded up to a
+    // power of two, with echoing switched on or off.
+    Tracer(int capacity, boolean echo) {
+        int n = Integer.highestOneBit(Math.max(capacity, 1) - 1) << 1;
+        if (n <= 0) n = 1;
+        ring = new int[4 * n];
+        mask = n - 1;
+        this.echo = echo;
+    }
+
+    // Prepare for a parse of the given input, with the nodes of the grammar as
+    // numbered by Node.number, which appends output to the given buffer.
+    void start(Node[] nodes, String input, CharSequence output) {
+        this.nodes = nodes;
+        this.input = input;
+        this.output = output;
+        text = null;
+        count = 0;
+    }
+
+    // Record the visit of a node.
+    void enter(Node node, int in) { record(ENTER, node.get(NUM), in, 0, 0); }
+
+    // Record the end of a rule.
+    void exit(Node node, int in, boolean ok) {
+        record(EXIT, node.get(NUM), in, ok ? 1 : 0, 0);
+    }
+
+    // Record progress, or the start of a parse.
+    void match(int in) { record(MATCH, 0, in, 0, 0); }
+
+    // Record backtracking.
+    void back(int in) { record(BACK, 0, in, 0, 0); }
+
+    // Record an action or drop, with the position of its line in the output
+    // buffer, and its output sequence number.
+    void act(Node node, int in, int at, int n) {
+        record(ACT, node.get(NUM), in, at, n);
+    }
+
+    // Add an event to the ring buffer.
+    private void record(int kind, int num, int in, int a, int b) {
+        int i = (int) (count++ & mask) << 2;
+        ring[i] = (num << 3) | kind;
+        ring[i+1] = in;
+        ring[i+2] = a;
+        ring[i+3] = b;
+        if (echo) System.out.print(render(i));
+    }
+
+    // Decode the events held in the buffer, oldest first. Say how many earlier
+    // events have been lost, if any.
+    String decode() {
+        StringBuilder sb = new StringBuilder();
+        long first = Math.max(0, count - mask - 1);
+        if (first > 0) sb.append("... " + first + " earlier events\n");
+        for (long e = first; e < count; e++) {
+            sb.append(render((int) (e & mask) << 2));
+        }
+        return sb.toString();
+    }
+
+    // Render the event at position i in the buffer, as zero or more lines.
+    private String render(int i) {
+        int kind = ring[i] & 7, num = ring[i] >>> 3, in = ring[i+1];
+        switch (kind) {
+            case ENTER: return nodes[num].trace() + "\n";
+            case MATCH: case BACK: return position(in);
+            case ACT: return outputLine(nodes[num], ring[i+2], ring[i+3]);
+            default: return "";
+        }
+    }
+
+    // Render an output line.
+    private String outputLine(Node node, int at, int n) {
+        if (node.op() == Drop) {
+            return "O" + n + ": DROP " + node.arity() + "\n";
+        }
+        int end = at;
+        while (end < output.length() && output.charAt(end) != '\n') end++;
+        return "O" + n + ": " + output.subSequence(at, end) + "\n";
+    }
+
+    // Render an input position, as the line containing it with a bar. The line
+    // is found using the line index of a source made from the input.
+    private String position(int in) {
+        if (text == null) {
+            text = new Source(input);
+            charAt = byteAt = 0;
+        }
+        int p = bytePosition(in);
+        int start = text.lineStart(p), stop = text.lineEnd(p);
+        return "I" + text.lineNumber(p) + ": " + text.substring(start, p) +
+            "|" + text.substring(p, stop) + "\n";
+    }
+
+    // Convert a position in the input string to a byte position in the source
+    // made from it, moving from the previous conversion, because successive
+    // positions are usually close together.
+    private int bytePosition(int in) {
+        while (charAt < in) {
+            int ch = input.codePointAt(charAt);
+            charAt += Character.charCount(ch);
+            byteAt += utf8Length(ch);
+        }
+        while (charAt > in) {
+            int ch = input.codePointBefore(charAt);
+            charAt -= Character.charCount(ch);
+            byteAt -= utf8Length(ch);
+        }
+        return byteAt;
+    }
+
+    // Find the number of bytes in the UTF-8 encoding of a character.
+    private static int utf8Length(int ch) {
+        if (ch < 0x80) return 1;
+        if (ch < 0x800) return 2;
+        if (ch < 0x10000) return 3;
+        return 4;
+    }
+
+    // Check that events are rendered, and that old events are overwritten.
+    public static void main(String[] args) {
+        Node x = new Node(Char, new Source("'x'"));
+        Node act = new Node(Act, new Source("@x"));
+        Node root = new Node(And, x, act, new Source("'x' @x"));
+        Tracer t = new Tracer(4, false);
+        Node[] nodes = root.number();
+        t.start(nodes, "ab\nxy", "x x\n");
+        t.match(0);
+        t.enter(x, 3);
+        t.match(4);
+        t.act(act, 4, 0, 1);
+        assert(t.decode().equals(
+            "I1: |ab\nP1: 'x'\nI2: x|y\nO1: x x\n"));
+        t.back(3);
+        assert(t.decode().startsWith("... 1 earlier events\nP1: 'x'\n"));
+        assert(t.decode().endsWith("I2: |xy\n"));
+        t.start(nodes, "πa\nπb", "");
+        t.match(4);
+        t.back(1);
+        assert(t.decode().equals("I2: π|b\nI1: π|a\n"));
+        System.out.println("Tracer class OK");
+    }
+}
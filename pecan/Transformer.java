@@ -17,13 +17,19 @@ nodes still have the right text so that they are compiled correctly. */
 // TODO: replace string in rule (assuming all nodes same source)
 
 class Transformer {
+    private int limit;
+    private Map<Node,Integer> sizes;
+    private List<Node> stack;
+    private Set<Node> recursive, inlined;
 
-    // Replace [x] by (x& x) if x contains actions or markers. Assume x is small
-    // enough to be repeated twice, rather than making a separate rule for it.
+    // Replace [x] by (x& x) if x contains actions or markers, unless [x] is
+    // equivalent to x. Assume x is small enough to be repeated twice, rather
+    // than making a separate rule for it.
     void expandSee(Node node) {
         if (node.left() != null) expandSee(node.left());
         if (node.right() != null) expandSee(node.right());
-        if (node.op() == See && (node.has(AA) || node.has(EE))) {
+        if (node.op() == See && (node.has(AA) || node.has(EE)) &&
+            ! node.redundant()) {
             Node x = node.left();
             Node hasX = new Node(Has, x, x.source());
             node.op(And);
@@ -108,6 +114,299 @@ class Transformer {
         list.right(list2);
     }
 
+    // Inline small non-recursive rules, replacing each id which refers to one
+    // by a copy of its body, to save the cost of a call in every engine. A rule
+    // is small if its body has at most limit nodes, after inlining into it.
+    // The copies keep their source text. The rule nodes of callers are
+    // unchanged, so their text still serves as comments. Rules which have been
+    // inlined everywhere, other than the first, are removed.
+    void inline(Node root, int limit) {
+        if (limit <= 0) return;
+        this.limit = limit;
+        sizes = new HashMap<>();
+        stack = new ArrayList<>();
+        recursive = new HashSet<>();
+        inlined = new HashSet<>();
+        for (Node node = root; node.op() == List; node = node.right()) {
+            if (! sizes.containsKey(node.left())) inlineRule(node.left());
+        }
+        Set<Node> called = new HashSet<>();
+        for (Node node = root; node.op() == List; node = node.right()) {
+            findCalls(node.left().right(), called);
+        }
+        Node prev = root;
+        for (Node node = root.right(); node.op() == List; node = node.right()) {
+            Node rule = node.left();
+            if (inlined.contains(rule) && ! called.contains(rule)) {
+                prev.right(node.right());
+            }
+            else prev = node;
+        }
+    }
+
+    // Inline into a rule, after inlining into the rules it calls, and then
+    // record its size. A call of a rule which is in progress means that all the
+    // rules in progress from that one onwards are recursive.
+    private void inlineRule(Node rule) {
+        stack.add(rule);
+        rule.right(inlineNode(rule.right()));
+        stack.remove(stack.size() - 1);
+        sizes.put(rule, size(rule.right()));
+    }
+
+    // Inline into a node, returning the node or its replacement.
+    private Node inlineNode(Node node) {
+        if (node.op() == Id) {
+            Node rule = node.ref();
+            int i = stack.indexOf(rule);
+            if (i >= 0) {
+                recursive.addAll(stack.subList(i, stack.size()));
+                return node;
+            }
+            if (! sizes.containsKey(rule)) inlineRule(rule);
+            if (recursive.contains(rule) || sizes.get(rule) > limit) {
+                return node;
+            }
+            inlined.add(rule);
+            Node copy = rule.right().deepCopy();
+            copy.cache();
+            return copy;
+        }
+        if (node.left() != null) node.left(inlineNode(node.left()));
+        if (node.right() != null) node.right(inlineNode(node.right()));
+        return node;
+    }
+
+    // Count the nodes in an expression.
+    private int size(Node node) {
+        int n = 1;
+        if (node.left() != null) n += size(node.left());
+        if (node.right() != null) n += size(node.right());
+        return n;
+    }
+
+    // Gather the rules called from a node.
+    private void findCalls(Node node, Set<Node> called) {
+        if (node.op() == Id) called.add(node.ref());
+        if (node.left() != null) findCalls(node.left(), called);
+        if (node.right() != null) findCalls(node.right(), called);
+    }
+
+    // Strip the actions, drops and error markers out of a grammar, leaving a
+    // recogniser which accepts the same inputs, without producing any output
+    // or error messages. Each always succeeds without progress, so it is left
+    // out of a sequence, and replaced by Success elsewhere. The grammar is
+    // changed in place, so it should be a fresh copy.
+    void strip(Node root) {
+        for (Node node = root; node.op() == List; node = node.right()) {
+            Node rule = node.left();
+            rule.right(stripNode(rule.right()));
+        }
+    }
+
+    // Strip a node, returning the node or its replacement.
+    private Node stripNode(Node node) {
+        node.unset(AA);
+        node.unset(EE);
+        node.unset(AB);
+        Op op = node.op();
+        if (op == Act || op == Drop || op == Mark) {
+            node.op(Success);
+            return node;
+        }
+        if (node.left() != null) node.left(stripNode(node.left()));
+        if (node.right() != null) node.right(stripNode(node.right()));
+        if (node.op() != And) return node;
+        if (node.left().op() == Success) return node.right();
+        if (node.right().op() == Success) return node.left();
+        return node;
+    }
+
+    // In a text grammar, replace each choice between literal strings or
+    // characters, such as "auto" / "break" / "case", by a Keys node, so the
+    // alternatives can be matched in one pass. The choice takes the first
+    // alternative which matches, so one which has an earlier alternative as a
+    // prefix can never match, and is dropped. Then, the first alternative
+    // which matches is the longest. The remaining alternatives are sorted into
+    // descending order, which keeps longer ones before their prefixes, and
+    // linked as a choice below the Keys node, which is equivalent. Then merge
+    // choices which use splitters to dispatch between ranges of keys, such as
+    // <df> keyword1 / keyword2, into single Keys nodes, repeating until no
+    // more merges happen, since the keys may come from other rules.
+    void keys(Node root) {
+        if (root.has(TI)) return;
+        keysNode(root);
+        boolean changed = true;
+        while (changed) changed = splitsNode(root);
+    }
+
+    private void keysNode(Node node) {
+        if (node.op() == Or && literals(node)) {
+            makeKeys(node);
+            return;
+        }
+        if (node.left() != null) keysNode(node.left());
+        if (node.right() != null) keysNode(node.right());
+    }
+
+    // Check whether a choice is between literal strings or characters.
+    private boolean literals(Node node) {
+        for (; node.op() == Or; node = node.right()) {
+            if (! literal(node.left())) return false;
+        }
+        return literal(node);
+    }
+
+    private boolean literal(Node node) {
+        return node.op() == Text || node.op() == Char;
+    }
+
+    // Convert a choice into a Keys node, keeping its source text.
+    private void makeKeys(Node node) {
+        List<Node> keys = new ArrayList<>();
+        Node n = node;
+        for (; n.op() == Or; n = n.right()) addKey(keys, n.left());
+        addKey(keys, n);
+        linkKeys(node, keys);
+    }
+
+    // Sort keys into descending order, and link them below a Keys node.
+    private void linkKeys(Node node, List<Node> keys) {
+        keys.sort((x, y) -> Arrays.compareUnsigned(y.utf8(), x.utf8()));
+        Node chain = keys.get(keys.size() - 1);
+        for (int i = keys.size() - 2; i >= 0; i--) {
+            chain = new Node(Or, "", keys.get(i), " / ", chain, "");
+        }
+        node.op(Keys);
+        node.left(chain);
+        node.right(null);
+    }
+
+    // Add an alternative, unless an earlier one is a prefix of it.
+    private void addKey(List<Node> keys, Node node) {
+        String s = node.rawText();
+        for (Node key : keys) if (s.startsWith(key.rawText())) return;
+        keys.add(node);
+    }
+
+    // In a text grammar, replace each loop x* or x+, where x always matches
+    // exactly one character or fails without progress, such as (' ' / '\t')*
+    // or ('"'! .)*, by a Span node above it, so that engines can scan ahead
+    // without a full parse of x for each character.
+    void spans(Node node) {
+        if (node.has(TI)) return;
+        spansNode(node);
+    }
+
+    private void spansNode(Node node) {
+        if ((node.op() == Any || node.op() == Some) && single(node.left())) {
+            Node loop = node.deepCopy();
+            node.op(Span);
+            node.left(loop);
+            return;
+        }
+        if (node.left() != null) spansNode(node.left());
+        if (node.right() != null) spansNode(node.right());
+    }
+
+    // Check whether a node always matches exactly one character or fails
+    // without progress, i.e. it is a character matcher, a choice of them, or
+    // one preceded by a lookahead for one. A choice may already have been
+    // turned into a Keys node, and its one-character texts count as matchers.
+    private boolean single(Node node) {
+        switch (node.op()) {
+            case Char: case Set: case Range: case Cat: case Point: return true;
+            case Text: return node.points().length == 1;
+            case Keys: return single(node.left());
+            case Or: return single(node.left()) && single(node.right());
+            case And:
+                Op op = node.left().op();
+                if (op != Has && op != Not) return false;
+                return single(node.left().left()) && single(node.right());
+            default: return false;
+        }
+    }
+
+    // In a text grammar, replace each loop (x! .)*, where x is a non-empty
+    // literal string or character, such as the body of a comment ("*/"! .)*,
+    // by an Until node with x as its subnode, so that engines can search for
+    // x instead of testing for it at every character. This should be done
+    // before loops are lifted out or turned into spans.
+    void untils(Node node) {
+        if (node.has(TI)) return;
+        untilsNode(node);
+    }
+
+    private void untilsNode(Node node) {
+        if (node.op() == Any && node.left().op() == And) {
+            Node not = node.left().left();
+            Node x = not.left();
+            boolean delimiter = not.op() == Not && literal(x) &&
+                ! x.rawText().isEmpty();
+            if (delimiter && node.left().right().op() == Point) {
+                node.op(Until);
+                node.left(x);
+                return;
+            }
+        }
+        if (node.left() != null) untilsNode(node.left());
+        if (node.right() != null) untilsNode(node.right());
+    }
+
+    // Merge <s> a / b into a Keys node, where a and b are keys, or ids of rules
+    // which are keys. It is equivalent if every input which starts with a key
+    // in a is less than s, and every input which starts with a key in b is
+    // greater than s. That means each key in a differs from s at some
+    // position, with a smaller UTF-16 unit, and each key in b is greater than
+    // s, comparing as the Evaluator does. Return true if any merges are made.
+    private boolean splitsNode(Node node) {
+        boolean changed = false;
+        if (node.left() != null) changed |= splitsNode(node.left());
+        if (node.right() != null) changed |= splitsNode(node.right());
+        if (node.op() != Or || node.left().op() != And) return changed;
+        if (node.left().left().op() != Split) return changed;
+        String s = node.left().left().rawText();
+        List<Node> a = keysOf(node.left().right());
+        List<Node> b = keysOf(node.right());
+        if (a == null || b == null) return changed;
+        for (Node key : a) {
+            String k = key.rawText();
+            int i = 0;
+            while (i < k.length() && i < s.length() &&
+                k.charAt(i) == s.charAt(i)) i++;
+            if (i >= k.length() || i >= s.length()) return changed;
+            if (k.charAt(i) >= s.charAt(i)) return changed;
+        }
+        for (Node key : b) {
+            if (key.rawText().compareTo(s) <= 0) return changed;
+        }
+        List<Node> keys = new ArrayList<>();
+        for (Node key : a) addKey(keys, key);
+        for (Node key : b) addKey(keys, key);
+        linkKeys(node, keys);
+        return true;
+    }
+
+    // Find copies of the keys of a node, or of the rule an id refers to, or
+    // return null if it isn't a literal or Keys node.
+    private List<Node> keysOf(Node node) {
+        if (node.op() == Id) node = node.ref().right();
+        List<Node> keys = new ArrayList<>();
+        if (literal(node)) keys.add(node);
+        else if (node.op() == Keys) {
+            Node n = node.left();
+            for (; n.op() == Or; n = n.right()) keys.add(n.left());
+            keys.add(n);
+        }
+        else return null;
+        for (int i = 0; i < keys.size(); i++) {
+            Node copy = keys.get(i).deepCopy();
+            copy.cache();
+            keys.set(i, copy);
+        }
+        return keys;
+    }
+
     // Given x, try x1, x2, ...
     private String findName(Set<String> names, String id) {
         String name = null;
@@ -119,14 +418,25 @@ class Transformer {
         return name;
     }
 
-    // Currently only expandSee is tested.
+    // Test expandSee and inline.
     public static void main(String[] args) {
+        testExpandSee();
+        testInline();
+        testKeys();
+        testSplits();
+        testAstralSplits();
+        testStrip();
+        System.out.println("Transformer class OK");
+    }
+
+    private static void testExpandSee() {
         Transformer trans = new Transformer();
         Node nx = new Node(Id, "x");
         Node ny = new Node(Id, "y");
         Node nz = new Node(Id, "z");
         Node see = new Node(See, "[", ny, "]");
         see.set(AA);
+        ny.set(FP);
         Node and = new Node(And, "", see, " ", nz, "");
         Node rule = new Node(Rule, "", nx, " = ", and, "");
         trans.expandSee(see);
@@ -138,6 +448,138 @@ class Transformer {
         assert(rule.right().left().left().left().text().equals("y"));
         assert(rule.right().left().right().op() == Id);
         assert(rule.right().left().right().text().equals("y"));
-        System.out.println("Transformer class OK");
+        Node see2 = new Node(See, "[", new Node(Id, "w"), "]");
+        see2.set(AA);
+        trans.expandSee(see2);
+        assert(see2.op() == See);
+    }
+
+    // Check x = d d, y = d y / 'c', d = 'a' becomes x = 'a' 'a',
+    // y = 'a' y / 'c', with d removed and y kept.
+    private static void testInline() {
+        Node x = new Node(Id, "x"), y = new Node(Id, "y");
+        Node d = new Node(Id, "d"), d1 = new Node(Id, "d");
+        Node d2 = new Node(Id, "d"), d3 = new Node(Id, "d");
+        Node y1 = new Node(Id, "y");
+        Node a = new Node(Char, "'a'"), c = new Node(Char, "'c'");
+        Node and1 = new Node(And, "", d1, " ", d2, "");
+        Node and2 = new Node(And, "", d3, " ", y1, "");
+        Node or = new Node(Or, "", and2, " / ", c, "");
+        Node rx = new Node(Rule, "", x, " = ", and1, "");
+        Node ry = new Node(Rule, "", y, " = ", or, "");
+        Node rd = new Node(Rule, "", d, " = ", a, "");
+        d1.ref(rd);
+        d2.ref(rd);
+        d3.ref(rd);
+        y1.ref(ry);
+        Node empty = new Node(Empty, "");
+        Node root = new Node(List, rx, new Node(List, ry,
+            new Node(List, rd, empty, rd.source()), ry.source()), rx.source());
+        new Transformer().inline(root, 1);
+        assert(rx.text().equals("x = d d"));
+        assert(rx.right().left().op() == Char);
+        assert(rx.right().right().op() == Char);
+        assert(rx.right().left() != a);
+        assert(rx.right().left() != rx.right().right());
+        assert(ry.right().left().left().op() == Char);
+        assert(ry.right().left().right() == y1);
+        assert(root.right().left() == ry);
+        assert(root.right().right().op() == Empty);
+    }
+
+    // Check "abc" / "ab" / 'b' / "a" / "abd" becomes keys 'b' / "abc" / "ab" /
+    // "a", with "abd" dropped.
+    private static void testKeys() {
+        Node abc = new Node(Text, "\"abc\""), ab = new Node(Text, "\"ab\"");
+        Node b = new Node(Char, "'b'"), a = new Node(Text, "\"a\"");
+        Node abd = new Node(Text, "\"abd\"");
+        Node or4 = new Node(Or, "", a, " / ", abd, "");
+        Node or3 = new Node(Or, "", b, " / ", or4, "");
+        Node or2 = new Node(Or, "", ab, " / ", or3, "");
+        Node or1 = new Node(Or, "", abc, " / ", or2, "");
+        Node x = new Node(Id, "x");
+        Node rule = new Node(Rule, "", x, " = ", or1, "");
+        Node root = new Node(List, rule, new Node(Empty, ""), rule.source());
+        new Transformer().keys(root);
+        assert(or1.op() == Keys);
+        assert(or1.text().equals("\"abc\" / \"ab\" / 'b' / \"a\" / \"abd\""));
+        assert(or1.left().text().equals("'b' / \"abc\" / \"ab\" / \"a\""));
+        assert(String.join(",", or1.keys()).equals("a,ab,abc,b"));
+    }
+
+    // Check x = <df> y / z, y = "break" / "default", z = "do" / "else" makes
+    // x into keys, and that w = <de> y / z is unchanged, because "de" is a
+    // prefix of "default".
+    private static void testSplits() {
+        Node x = new Node(Id, "x"), y = new Node(Id, "y");
+        Node z = new Node(Id, "z"), y1 = new Node(Id, "y");
+        Node z1 = new Node(Id, "z"), y2 = new Node(Id, "y");
+        Node z2 = new Node(Id, "z");
+        Node df = new Node(Split, "<df>"), de = new Node(Split, "<de>");
+        Node and1 = new Node(And, "", df, " ", y1, "");
+        Node or1 = new Node(Or, "", and1, " / ", z1, "");
+        Node or2 = new Node(Or, "", new Node(Text, "\"break\""), " / ",
+            new Node(Text, "\"default\""), "");
+        Node or3 = new Node(Or, "", new Node(Text, "\"do\""), " / ",
+            new Node(Text, "\"else\""), "");
+        Node and4 = new Node(And, "", de, " ", y2, "");
+        Node or4 = new Node(Or, "", and4, " / ", z2, "");
+        Node rx = new Node(Rule, "", x, " = ", or1, "");
+        Node ry = new Node(Rule, "", y, " = ", or2, "");
+        Node rz = new Node(Rule, "", z, " = ", or3, "");
+        Node rw = new Node(Rule, "", new Node(Id, "w"), " = ", or4, "");
+        y1.ref(ry);
+        y2.ref(ry);
+        z1.ref(rz);
+        z2.ref(rz);
+        Node root = new Node(List, rx, new Node(List, ry, new Node(List, rz,
+            new Node(List, rw, new Node(Empty, ""), rw.source()),
+            rz.source()), ry.source()), rx.source());
+        new Transformer().keys(root);
+        assert(or1.op() == Keys);
+        assert(or1.text().equals("<df> y / z"));
+        assert(String.join(",", or1.keys()).equals("break,default,do,else"));
+        assert(or4.op() == Or);
+    }
+
+    // Check that <s> "k" / "z" is merged into keys only if k is less than s,
+    // and z greater, by UTF-16 units as in the Evaluator, where U+10000 comes
+    // before U+E000, though in UTF-8 it comes after.
+    private static void testAstralSplits() {
+        assert(splits("\\57344", "\\65536", "\\57345"));
+        assert(! splits("\\65536", "\\57344", "\\65537"));
+    }
+
+    // Transform x = <s> "k" / "z", and report whether it became keys.
+    private static boolean splits(String s, String k, String z) {
+        Node split = new Node(Split, "<" + s + ">");
+        Node key = new Node(Text, "\"" + k + "\"");
+        Node and = new Node(And, "", split, " ", key, "");
+        Node other = new Node(Text, "\"" + z + "\"");
+        Node or = new Node(Or, "", and, " / ", other, "");
+        Node rx = new Node(Rule, "", new Node(Id, "x"), " = ", or, "");
+        Node root = new Node(List, rx, new Node(Empty, ""), rx.source());
+        new Transformer().keys(root);
+        return or.op() == Keys;
+    }
+
+    // Check x = #m 'a' @a / 'b' @2c is stripped to x = 'a' / 'b', with the
+    // flags for actions and markers cleared.
+    private static void testStrip() {
+        Node x = new Node(Id, "x"), m = new Node(Mark, "#m");
+        Node a = new Node(Char, "'a'"), b = new Node(Char, "'b'");
+        Node act1 = new Node(Act, "@a"), act2 = new Node(Act, "@2c");
+        Node and2 = new Node(And, "", a, " ", act1, "");
+        Node and1 = new Node(And, "", m, " ", and2, "");
+        Node and3 = new Node(And, "", b, " ", act2, "");
+        Node or = new Node(Or, "", and1, " / ", and3, "");
+        Node rx = new Node(Rule, "", x, " = ", or, "");
+        Node root = new Node(List, rx, new Node(Empty, ""), rx.source());
+        or.set(AA);
+        or.set(EE);
+        new Transformer().strip(root);
+        assert(rx.right() == or);
+        assert(or.left() == a && or.right() == b);
+        assert(! or.has(AA) && ! or.has(EE));
     }
 }